@@ -0,0 +1,200 @@
+package jxtaapp.service;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import net.jxta.document.MimeMediaType;
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.StringMessageElement;
+import net.jxta.impl.endpoint.WireFormatMessageFactory;
+
+/**
+ * Benchmark of the chunk metadata: the string elements "Filename",
+ * "FilePackageSize", "PackageSize", "PackageNo", "Offset", "Encoding" and
+ * "Checksum" against one binary {@link ChunkHeader} element. Reports the time
+ * and the allocated heap bytes per encode and decode, the header once into a
+ * new array ({@link ChunkHeader#encode(int)}) and once into a reused buffer
+ * ({@link ChunkHeader#encode(byte[], int)}), and the size of the metadata in
+ * the binary wire format of a message. The content of the chunk is the same
+ * for both formats and left out.
+ * <p>
+ * Runs on a desktop HotSpot JVM, which counts the allocated bytes per thread:
+ *
+ * <pre>
+ * javac -cp lib/peerdroid-1.1.jar -d /tmp/bench src/jxtaapp/service/*.java \
+ *     bench/jxtaapp/service/*.java (plus stubs of the android classes)
+ * java -cp lib/peerdroid-1.1.jar:/tmp/bench \
+ *     jxtaapp.service.ChunkHeaderBenchmark [iterations]
+ * </pre>
+ */
+public class ChunkHeaderBenchmark {
+	private final static int DEFAULT_ITERATIONS = 1000000;
+	private final static String FILENAME = "photos/2009/holiday.jpg";
+	private final static MimeMediaType WIRE_FORMAT = new MimeMediaType(
+			"application/x-jxta-msg");
+
+	/** Sum of the decoded fields, so no decode can be optimized away */
+	private static long sink = 0;
+	/**
+	 * Last encoded header; keeps the new array alive like the message element
+	 * of the send path does, so escape analysis cannot remove it
+	 */
+	private static byte[] encoded;
+
+	public static void main(String[] args) throws IOException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_ITERATIONS;
+
+		// warm up, so class loading and JIT are not measured
+		runStrings(iterations / 10);
+		runHeader(iterations / 10);
+		runHeaderInto(iterations / 10);
+
+		long start = System.nanoTime();
+		long allocated = getAllocatedBytes();
+		runStrings(iterations);
+		report("string elements", iterations, getAllocatedBytes() - allocated,
+				System.nanoTime() - start);
+
+		start = System.nanoTime();
+		allocated = getAllocatedBytes();
+		runHeader(iterations);
+		report("header, new array", iterations, getAllocatedBytes()
+				- allocated, System.nanoTime() - start);
+
+		start = System.nanoTime();
+		allocated = getAllocatedBytes();
+		runHeaderInto(iterations);
+		report("header, reused buffer", iterations, getAllocatedBytes()
+				- allocated, System.nanoTime() - start);
+
+		long empty = getWireSize(createMessage());
+		Message strings = createMessage();
+		addStringElements(strings, createHeader(0));
+		Message header = createMessage();
+		header.addMessageElement(new ByteArrayMessageElement(
+				ChunkHeader.ELEMENT_NAME, null, createHeader(0).encode(
+						ChunkHeader.VERSION), null));
+		System.out.println("wire size of the metadata: string elements "
+				+ (getWireSize(strings) - empty) + " bytes, header "
+				+ (getWireSize(header) - empty) + " bytes");
+		System.out.println("(sum of the decoded fields " + sink + ")");
+	}
+
+	/**
+	 * Encodes the metadata as string elements and parses them again, like
+	 * the sender and the receiver of the string format.
+	 */
+	private static void runStrings(int iterations) {
+		for (int i = 0; i < iterations; i++) {
+			Message msg = new Message();
+			addStringElements(msg, createHeader(i));
+
+			sink += msg.getMessageElement("Filename").toString().length();
+			sink += Integer.valueOf(
+					msg.getMessageElement("FilePackageSize").toString())
+					.intValue();
+			sink += Integer.valueOf(
+					msg.getMessageElement("PackageSize").toString()).intValue();
+			sink += Integer.valueOf(
+					msg.getMessageElement("PackageNo").toString()).intValue();
+			sink += Long.valueOf(msg.getMessageElement("Offset").toString())
+					.longValue();
+			sink += msg.getMessageElement("Encoding").toString().length();
+			sink += Integer.valueOf(
+					msg.getMessageElement("Checksum").toString()).intValue();
+		}
+	}
+
+	private static void runHeader(int iterations) throws IOException {
+		ChunkHeader decoded = new ChunkHeader();
+		for (int i = 0; i < iterations; i++) {
+			encoded = createHeader(i).encode(ChunkHeader.VERSION);
+			decoded.decode(encoded);
+			sink += decoded.offset + decoded.checksum;
+		}
+	}
+
+	private static void runHeaderInto(int iterations) throws IOException {
+		ChunkHeader header = new ChunkHeader();
+		ChunkHeader decoded = new ChunkHeader();
+		byte[] b = new byte[ChunkHeader.getSize(ChunkHeader.VERSION)];
+		for (int i = 0; i < iterations; i++) {
+			fillHeader(header, i);
+			header.encode(b, ChunkHeader.VERSION);
+			decoded.decode(b);
+			sink += decoded.offset + decoded.checksum;
+		}
+	}
+
+	private static ChunkHeader createHeader(int i) {
+		ChunkHeader header = new ChunkHeader();
+		fillHeader(header, i);
+		return header;
+	}
+
+	private static void fillHeader(ChunkHeader header, int i) {
+		header.transferId = 7;
+		header.filePackageSize = 3201;
+		header.packageSize = 4 * 32 * 1024;
+		header.packageNo = 1 + (i % 800) * 4;
+		header.offset = (long) (header.packageNo - 1) * 32 * 1024;
+		header.compressed = true;
+		header.hasChecksum = true;
+		header.checksum = i * 31;
+	}
+
+	private static void addStringElements(Message msg, ChunkHeader header) {
+		msg.addMessageElement(new StringMessageElement("Filename", FILENAME,
+				null));
+		msg.addMessageElement(new StringMessageElement("FilePackageSize",
+				String.valueOf(header.filePackageSize), null));
+		msg.addMessageElement(new StringMessageElement("PackageSize", String
+				.valueOf(header.packageSize), null));
+		msg.addMessageElement(new StringMessageElement("PackageNo", String
+				.valueOf(header.packageNo), null));
+		msg.addMessageElement(new StringMessageElement("Offset", String
+				.valueOf(header.offset), null));
+		msg.addMessageElement(new StringMessageElement("Encoding",
+				ChunkCompressor.ENCODING, null));
+		msg.addMessageElement(new StringMessageElement("Checksum", String
+				.valueOf(header.checksum), null));
+	}
+
+	/**
+	 * @return A chunk message with the elements both formats have
+	 */
+	private static Message createMessage() {
+		Message msg = new Message();
+		msg.addMessageElement(new StringMessageElement("Type",
+				Jxta.MessageType.FILE.toString(), null));
+		msg.addMessageElement(new StringMessageElement("From",
+				"urn:jxta:uuid-59616261646162614E50472050325033"
+						+ "A2C3C1E0C5A74A7CAF7C0D3F51E5A05303", null));
+		msg.addMessageElement(new StringMessageElement("FromName", "peer",
+				null));
+		return msg;
+	}
+
+	private static long getWireSize(Message msg) {
+		return WireFormatMessageFactory.toWire(msg, WIRE_FORMAT, null)
+				.getByteLength();
+	}
+
+	/**
+	 * @return Heap bytes allocated by the current thread so far
+	 */
+	private static long getAllocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean()).getThreadAllocatedBytes(Thread
+				.currentThread().getId());
+	}
+
+	private static void report(String format, int iterations, long bytes,
+			long nanos) {
+		System.out.println(format + ": " + nanos / iterations
+				+ " ns and " + bytes / iterations
+				+ " bytes allocated per encode and decode");
+	}
+}
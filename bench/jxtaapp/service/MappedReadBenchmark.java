@@ -0,0 +1,193 @@
+package jxtaapp.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.MessageElement;
+
+/**
+ * Allocation benchmark of reading a file for sending: the former loop, which
+ * read every package into a byte[] buffer and put a clone() of it into a
+ * {@link ByteArrayMessageElement}, against slices of the memory mapped file
+ * ({@link MappedFileReader}) in a {@link ByteBufferMessageElement}. Both read
+ * the same file in packages of the same size and write every element to a
+ * stream which only sums the bytes, as the wire format does with a pipe; the
+ * allocated heap bytes of the benchmark thread are reported per path.
+ * <p>
+ * Runs on a desktop HotSpot JVM, which counts the allocated bytes per thread:
+ *
+ * <pre>
+ * javac -cp lib/peerdroid-1.1.jar -d /tmp/bench src/jxtaapp/service/*.java \
+ *     bench/jxtaapp/service/*.java (plus stubs of the android classes)
+ * java -cp lib/peerdroid-1.1.jar:/tmp/bench \
+ *     jxtaapp.service.MappedReadBenchmark [file] [package size] [rounds]
+ * </pre>
+ *
+ * Without a file a temporary file of 64 MB with random content is used.
+ */
+public class MappedReadBenchmark {
+	private final static long DEFAULT_FILE_SIZE = 64 * 1024 * 1024;
+	private final static int DEFAULT_PACKAGE_SIZE = 32 * 1024;
+	private final static int DEFAULT_ROUNDS = 5;
+
+	/**
+	 * Stands in for the pipe, sums the written bytes so no read can be
+	 * optimized away.
+	 */
+	private static class SummingOutputStream extends OutputStream {
+		private long sum = 0;
+
+		public void write(int b) {
+			sum += b;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			for (int i = off; i < off + len; i++)
+				sum += b[i];
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		File file;
+		boolean temporary = args.length < 1;
+		if (temporary)
+			file = createFile(DEFAULT_FILE_SIZE);
+		else
+			file = new File(args[0]);
+		int packageSize = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_PACKAGE_SIZE;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2])
+				: DEFAULT_ROUNDS;
+
+		try {
+			long packages = (file.length() + packageSize - 1) / packageSize;
+			System.out.println("File " + file + ": " + file.length()
+					+ " bytes, " + packages + " packages of " + packageSize
+					+ " bytes, " + rounds + " rounds");
+
+			// warm up both paths, so class loading and JIT are not measured
+			readWithClone(file, packageSize);
+			readMapped(file, packageSize);
+
+			long cloneBytes = 0;
+			long cloneTime = 0;
+			long mappedBytes = 0;
+			long mappedTime = 0;
+			for (int i = 0; i < rounds; i++) {
+				long start = System.nanoTime();
+				long allocated = getAllocatedBytes();
+				readWithClone(file, packageSize);
+				cloneBytes += getAllocatedBytes() - allocated;
+				cloneTime += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				allocated = getAllocatedBytes();
+				readMapped(file, packageSize);
+				mappedBytes += getAllocatedBytes() - allocated;
+				mappedTime += System.nanoTime() - start;
+			}
+
+			report("byte[] + clone()", cloneBytes / rounds, packages,
+					cloneTime / rounds);
+			report("mapped slices", mappedBytes / rounds, packages,
+					mappedTime / rounds);
+		} finally {
+			if (temporary)
+				file.delete();
+		}
+	}
+
+	/**
+	 * The former send loop without the pipe: one read buffer, a clone of it
+	 * per package.
+	 *
+	 * @return Sum of the bytes, so no read can be optimized away
+	 */
+	private static long readWithClone(File file, int packageSize)
+			throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		byte[] buffer = new byte[packageSize];
+		SummingOutputStream out = new SummingOutputStream();
+
+		try {
+			while (in.read(buffer) != -1) {
+				MessageElement element = new ByteArrayMessageElement(
+						"Content", null, buffer.clone(), null);
+				element.sendToStream(out);
+			}
+		} finally {
+			in.close();
+		}
+
+		return out.sum;
+	}
+
+	/**
+	 * The send path of {@link FileTransfer}: a slice of the mapped file per
+	 * package.
+	 *
+	 * @return Sum of the bytes, so no read can be optimized away
+	 */
+	private static long readMapped(File file, int packageSize)
+			throws IOException {
+		MappedFileReader reader = new MappedFileReader(file);
+		SummingOutputStream out = new SummingOutputStream();
+
+		try {
+			for (long offset = 0; offset < reader.getFileSize(); offset += packageSize) {
+				int length = (int) Math.min(packageSize, reader.getFileSize()
+						- offset);
+				ByteBuffer part = reader.read(offset, length);
+				MessageElement element = new ByteBufferMessageElement(
+						"Content", null, part, null);
+				element.sendToStream(out);
+			}
+		} finally {
+			reader.close();
+		}
+
+		return out.sum;
+	}
+
+	/**
+	 * @return Heap bytes allocated by the current thread so far
+	 */
+	private static long getAllocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean()).getThreadAllocatedBytes(Thread
+				.currentThread().getId());
+	}
+
+	private static void report(String path, long bytes, long packages,
+			long nanos) {
+		System.out.println(path + ": " + bytes + " bytes allocated per round, "
+				+ bytes / Math.max(1, packages) + " per package, " + nanos
+				/ 1000000 + " ms");
+	}
+
+	private static File createFile(long size) throws IOException {
+		File file = File.createTempFile("bench", ".bin");
+		FileOutputStream out = new FileOutputStream(file);
+		byte[] buffer = new byte[1024 * 1024];
+		Random random = new Random(1);
+
+		try {
+			for (long written = 0; written < size; written += buffer.length) {
+				random.nextBytes(buffer);
+				out.write(buffer, 0, (int) Math.min(buffer.length, size
+						- written));
+			}
+		} finally {
+			out.close();
+		}
+
+		return file;
+	}
+}
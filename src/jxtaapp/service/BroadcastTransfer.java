@@ -0,0 +1,188 @@
+package jxtaapp.service;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jxtaapp.ui.JxtaApp;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessageElement;
+import net.jxta.endpoint.StringMessageElement;
+import net.jxta.pipe.OutputPipe;
+import android.util.Log;
+
+/**
+ * Responsible for text messages to all peers of a room, sent once over the
+ * propagate pipe of the room (see {@link Discovery#joinRoom(String)}) instead
+ * of once per peer. The {@link Message} consists of the following
+ * {@link MessageElement}s:
+ * <ol>
+ * <li>StringMessageElement: "Type" as name, always
+ * {@link Jxta.MessageType#BROADCAST}</li>
+ * <li>StringMessageElement: "From" as name, the peer ID of the sender</li>
+ * <li>StringMessageElement: "FromName" as name, the name of the sender</li>
+ * <li>StringMessageElement: "Room" as name, the name of the room</li>
+ * <li>StringMessageElement: "MessageId" as name, unique for the sender</li>
+ * <li>StringMessageElement: "Content" as name, the text</li>
+ * </ol>
+ * A propagated message can arrive more than once, e.g. by multicast and by the
+ * rendezvous peer, and also comes back to its sender. The receiver remembers
+ * the ids of the last {@link #MAX_SEEN_MESSAGES} messages and drops
+ * duplicates and its own messages.
+ */
+public class BroadcastTransfer {
+	private final static int MAX_SEEN_MESSAGES = 1024;
+
+	private String peerId;
+	private String instanceName;
+	private String idPrefix;
+	private AtomicLong nextMessageId = new AtomicLong(1);
+	private Map<String, Boolean> seenMessages;
+	private AtomicLong duplicates = new AtomicLong(0);
+	private PriorityGate priorityGate = new PriorityGate();
+
+	/**
+	 * Constructor for broadcast manager
+	 *
+	 * @param peerId
+	 *            ID of the peer in JXTAs format
+	 * @param instanceName
+	 *            Name of own peer
+	 */
+	public BroadcastTransfer(String peerId, String instanceName) {
+		this.peerId = peerId;
+		this.instanceName = instanceName;
+		// ids of a restarted peer must differ from the ids before
+		this.idPrefix = Long.toString(System.currentTimeMillis(), 36) + "-";
+		this.seenMessages = new LinkedHashMap<String, Boolean>() {
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > MAX_SEEN_MESSAGES;
+			}
+		};
+	}
+
+	/**
+	 * @param priorityGate
+	 *            Gate shared with the other services, so broadcasts are sent
+	 *            before file chunks
+	 */
+	void setPriorityGate(PriorityGate priorityGate) {
+		this.priorityGate = priorityGate;
+	}
+
+	/**
+	 * Registers the handler for {@link Jxta.MessageType#BROADCAST} messages.
+	 * One worker thread, so the texts are shown in the order they arrived.
+	 *
+	 * @param dispatcher
+	 *            The dispatcher of the received messages
+	 */
+	public void registerHandlers(MessageDispatcher dispatcher) {
+		dispatcher.register(Jxta.MessageType.BROADCAST.toString(),
+				new MessageHandler() {
+					public void handleMessage(Jxta jxtaService, Message msg) {
+						receiveBroadcast(jxtaService, msg);
+					}
+				}, Jxta.MessageType.BROADCAST.getPriority(), 1, 64);
+	}
+
+	/**
+	 * @return Number of received messages dropped as duplicates
+	 */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * Sends a text to all peers of a room.
+	 *
+	 * @param pipe
+	 *            The propagate output pipe of the room
+	 * @param room
+	 *            Name of the room
+	 * @param data
+	 *            The message text
+	 * @throws IOException
+	 *             If the text could not be sent
+	 */
+	public void sendBroadcast(OutputPipe pipe, String room, String data)
+			throws IOException {
+		Message msg = new Message();
+		msg.addMessageElement(new StringMessageElement("Type",
+				Jxta.MessageType.BROADCAST.toString(), null));
+		msg.addMessageElement(new StringMessageElement("From", peerId, null));
+		msg.addMessageElement(new StringMessageElement("FromName",
+				instanceName, null));
+		msg.addMessageElement(new StringMessageElement("Room", room, null));
+		msg.addMessageElement(new StringMessageElement("MessageId", idPrefix
+				+ nextMessageId.getAndIncrement(), null));
+		msg.addMessageElement(new StringMessageElement("Content", data, null));
+
+		priorityGate.enter(MessagePriority.INTERACTIVE);
+		try {
+			pipe.send(msg);
+		} finally {
+			priorityGate.exit(MessagePriority.INTERACTIVE);
+		}
+		Log.d(JxtaApp.TAG, "Broadcast to room " + room + " was send");
+	}
+
+	/**
+	 * Handles a received broadcast: drops duplicates and own messages and
+	 * stores the text in the history of the sending peer.
+	 *
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object for saving the message
+	 *            history
+	 * @param msg
+	 *            The received message
+	 */
+	public void receiveBroadcast(final Jxta jxtaService, Message msg) {
+		String from = msg.getMessageElement("From").toString();
+		final String fromName = msg.getMessageElement("FromName").toString();
+		final String room = msg.getMessageElement("Room").toString();
+		final String content = msg.getMessageElement("Content").toString();
+
+		if (from.equals(peerId))
+			return;
+
+		String key = from + "/" + msg.getMessageElement("MessageId").toString();
+		synchronized (seenMessages) {
+			if (seenMessages.put(key, Boolean.TRUE) != null) {
+				duplicates.incrementAndGet();
+				return;
+			}
+		}
+
+		Log.d(JxtaApp.TAG, "BROADCAST FROM " + fromName + " TO " + room + " ("
+				+ new Date() + "): " + content + " (PeerID: " + from + ")");
+
+		JxtaApp.handler.post(new Runnable() {
+			public void run() {
+				Peer peer = jxtaService.getPeerByName(fromName);
+				if (peer == null)
+					return;
+
+				String name = "> " + fromName + " @" + room;
+				String time = new SimpleDateFormat("dd.MM.yy HH:mm:ss")
+						.format(new Date());
+				peer.addHistory(name, time, content);
+
+				// id view for this peer open display it
+				if (JxtaApp.lstChatHistoryElements != null
+						&& JxtaApp.lstChatHistoryAdapter != null) {
+					Map<String, String> map = new HashMap<String, String>();
+					map.put("name", name);
+					map.put("time", time);
+					map.put("text", content);
+					JxtaApp.lstChatHistoryElements.add(map);
+					JxtaApp.lstChatHistoryAdapter.notifyDataSetChanged();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,84 @@
+package jxtaapp.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import net.jxta.document.MimeMediaType;
+import net.jxta.endpoint.MessageElement;
+
+/**
+ * A {@link MessageElement} whose content is a {@link ByteBuffer}, e.g. a slice
+ * of a memory mapped file (see {@link MappedFileReader}). The message layer
+ * writes the content with {@link #sendToStream(OutputStream)} directly from
+ * the buffer, so no byte array of the element size is allocated on the way.
+ */
+public class ByteBufferMessageElement extends MessageElement {
+	private final ByteBuffer buffer;
+
+	/**
+	 * @param name
+	 *            Name of the element
+	 * @param type
+	 *            Mime type of the element, null for the default type
+	 * @param buffer
+	 *            The content from its position to its limit, the buffer is
+	 *            not copied and must not be changed afterwards
+	 * @param sig
+	 *            Signature of the element or null
+	 */
+	public ByteBufferMessageElement(String name, MimeMediaType type,
+			ByteBuffer buffer, MessageElement sig) {
+		super(name, type, sig);
+		this.buffer = buffer.slice();
+	}
+
+	public long getByteLength() {
+		return buffer.remaining();
+	}
+
+	/**
+	 * Only for consumers which need an array, this always copies the content.
+	 */
+	public synchronized byte[] getBytes(boolean copy) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	public InputStream getStream() throws IOException {
+		final ByteBuffer content = buffer.duplicate();
+
+		return new InputStream() {
+			public int read() {
+				return content.hasRemaining() ? content.get() & 0xff : -1;
+			}
+
+			public int read(byte[] b, int off, int len) {
+				if (len == 0)
+					return 0;
+				if (!content.hasRemaining())
+					return -1;
+
+				len = Math.min(len, content.remaining());
+				content.get(b, off, len);
+				return len;
+			}
+
+			public int available() {
+				return content.remaining();
+			}
+		};
+	}
+
+	public void sendToStream(OutputStream sendTo) throws IOException {
+		ByteBuffer content = buffer.duplicate();
+		WritableByteChannel channel = Channels.newChannel(sendTo);
+
+		while (content.hasRemaining())
+			channel.write(content);
+	}
+}
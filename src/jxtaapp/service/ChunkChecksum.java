@@ -0,0 +1,52 @@
+package jxtaapp.service;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * CRC-32 of the uncompressed content of a chunk, sent with every chunk (see
+ * {@link FileTransfer}) so the receiver detects a damaged chunk before it is
+ * written and asks for it again at once.
+ */
+class ChunkChecksum {
+	private final static int BLOCK_SIZE = 8 * 1024;
+
+	/**
+	 * @param chunk
+	 *            The chunk from its position to its limit, the position is
+	 *            not changed
+	 * @return The checksum
+	 */
+	public static int compute(ByteBuffer chunk) {
+		CRC32 crc = new CRC32();
+
+		if (chunk.hasArray()) {
+			crc.update(chunk.array(), chunk.arrayOffset() + chunk.position(),
+					chunk.remaining());
+		} else {
+			// a mapped buffer has no array, it is copied in small blocks
+			ByteBuffer source = chunk.duplicate();
+			byte[] block = new byte[Math.min(BLOCK_SIZE, source.remaining())];
+			while (source.hasRemaining()) {
+				int length = Math.min(block.length, source.remaining());
+				source.get(block, 0, length);
+				crc.update(block, 0, length);
+			}
+		}
+
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * @param content
+	 *            The received chunk
+	 * @param length
+	 *            Number of bytes of the chunk
+	 * @return The checksum
+	 */
+	public static int compute(byte[] content, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(content, 0, length);
+		return (int) crc.getValue();
+	}
+}
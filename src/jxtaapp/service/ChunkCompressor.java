@@ -0,0 +1,139 @@
+package jxtaapp.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import jxtaapp.ui.JxtaApp;
+import android.util.Log;
+
+/**
+ * Compresses the chunks of one outgoing file transfer (see
+ * {@link FileTransfer}). Every chunk is compressed on its own, so chunks can
+ * still be retransmitted and arrive in any order. A chunk which does not get
+ * smaller is sent uncompressed.
+ * <p>
+ * The first {@link #SAMPLE_CHUNKS} chunks are a sample: if they save less than
+ * {@link #MIN_SAVING} of their size the data is taken as incompressible (e.g.
+ * JPEG or APK files) and compression is switched off for the rest of the
+ * transfer.
+ */
+class ChunkCompressor {
+	public final static String ENCODING = "deflate";
+	private final static int SAMPLE_CHUNKS = 4;
+	private final static double MIN_SAVING = 0.1;
+
+	private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private byte[] input = new byte[0];
+	private boolean enabled = true;
+	private int sampledChunks = 0;
+	private long sampledBytes = 0;
+	private long sampledCompressedBytes = 0;
+
+	/**
+	 * @return false if compression was switched off after the sample
+	 */
+	public synchronized boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Compresses a chunk.
+	 * 
+	 * @param chunk
+	 *            Content from its position to its limit, the position is not
+	 *            changed
+	 * @return The compressed chunk or null if the chunk is to be sent
+	 *         uncompressed
+	 */
+	public synchronized ByteBuffer compress(ByteBuffer chunk) {
+		if (!enabled)
+			return null;
+
+		int length = chunk.remaining();
+		if (input.length < length)
+			input = new byte[length];
+		chunk.duplicate().get(input, 0, length);
+
+		// output is limited to the input size, larger results are not used
+		byte[] output = new byte[length];
+		int compressedLength = 0;
+		deflater.reset();
+		deflater.setInput(input, 0, length);
+		deflater.finish();
+		while (!deflater.finished() && compressedLength < length)
+			compressedLength += deflater.deflate(output, compressedLength,
+					length - compressedLength);
+		boolean smaller = deflater.finished() && compressedLength < length;
+
+		if (sampledChunks < SAMPLE_CHUNKS) {
+			sampledBytes += length;
+			sampledCompressedBytes += smaller ? compressedLength : length;
+			if (++sampledChunks == SAMPLE_CHUNKS
+					&& sampledCompressedBytes > (1 - MIN_SAVING) * sampledBytes) {
+				Log.d(JxtaApp.TAG, "FILE: data is incompressible ("
+						+ sampledCompressedBytes + "/" + sampledBytes
+						+ " bytes), compression switched off");
+				enabled = false;
+			}
+		}
+
+		if (!smaller)
+			return null;
+
+		return ByteBuffer.wrap(output, 0, compressedLength);
+	}
+
+	/**
+	 * Decompresses a chunk compressed by {@link #compress(ByteBuffer)}.
+	 * 
+	 * @param content
+	 *            The compressed chunk
+	 * @param length
+	 *            Size of the uncompressed chunk as announced by the sender
+	 * @param maxLength
+	 *            Largest size accepted, checked before the output is allocated
+	 * @return The uncompressed chunk
+	 * @throws IOException
+	 *             if the size is out of range or the content is corrupt
+	 */
+	public static byte[] decompress(byte[] content, int length, int maxLength)
+			throws IOException {
+		if (length < 0 || length > maxLength)
+			throw new IOException("Compressed chunk with size " + length
+					+ " out of range");
+
+		Inflater inflater = new Inflater();
+		byte[] output = new byte[length];
+		int inflated = 0;
+
+		try {
+			inflater.setInput(content);
+			while (!inflater.finished() && inflated < length) {
+				int n = inflater.inflate(output, inflated, length - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				inflated += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed chunk: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+
+		if (inflated != length)
+			throw new IOException("Compressed chunk has " + inflated
+					+ " instead of " + length + " bytes");
+
+		return output;
+	}
+
+	/**
+	 * Frees the native compression resources.
+	 */
+	public synchronized void end() {
+		deflater.end();
+	}
+}
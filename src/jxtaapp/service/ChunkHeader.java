@@ -0,0 +1,120 @@
+package jxtaapp.service;
+
+import java.io.IOException;
+
+/**
+ * Binary header of a chunk message (see {@link FileTransfer}), replaces the
+ * string elements "Filename", "FilePackageSize", "PackageSize", "PackageNo",
+ * "Offset" and "Encoding" by one element {@link #ELEMENT_NAME} of at most 30
+ * bytes. The file is identified by a transfer id which the sender announces
+ * in the offer, so the file name is not repeated in every chunk. Encoding and
+ * decoding work on the fields of a header object and a byte array directly,
+ * without any intermediate strings or buffers.
+ * <p>
+ * Format (big endian): byte version, byte flags, int transfer id, int package
+ * count of the file, int package size, int package number, long offset and
+ * since version 2 int {@link ChunkChecksum} of the uncompressed content. The
+ * sender writes the version the receiver announced in its answer to the
+ * offer.
+ */
+class ChunkHeader {
+	public final static String ELEMENT_NAME = "ChunkHeader";
+	public final static int VERSION = 2;
+	private final static int SIZE_VERSION_1 = 26;
+	private final static int SIZE_VERSION_2 = 30;
+	private final static int FLAG_COMPRESSED = 0x01;
+
+	public int transferId;
+	public int filePackageSize;
+	public int packageSize;
+	public int packageNo;
+	public long offset;
+	public boolean compressed;
+	public boolean hasChecksum;
+	public int checksum;
+
+	/**
+	 * @param version
+	 *            Version of the header understood by the receiver
+	 * @return Size of the encoded header in bytes
+	 */
+	public static int getSize(int version) {
+		return version >= 2 ? SIZE_VERSION_2 : SIZE_VERSION_1;
+	}
+
+	/**
+	 * @param version
+	 *            Version of the header understood by the receiver
+	 * @return The encoded header in a new array, e.g. for a message element
+	 *         which keeps it until the message is sent
+	 */
+	public byte[] encode(int version) {
+		byte[] b = new byte[getSize(version)];
+		encode(b, version);
+		return b;
+	}
+
+	/**
+	 * Encodes the header into a buffer of the caller without allocating.
+	 * 
+	 * @param b
+	 *            Buffer of at least {@link #getSize(int)} bytes, the header
+	 *            starts at index 0
+	 * @param version
+	 *            Version of the header understood by the receiver
+	 * @return Size of the encoded header in bytes
+	 */
+	public int encode(byte[] b, int version) {
+		if (b.length < getSize(version))
+			throw new IllegalArgumentException("Buffer of " + b.length
+					+ " bytes too small for chunk header");
+
+		b[0] = (byte) (version >= 2 ? 2 : 1);
+		b[1] = (byte) (compressed ? FLAG_COMPRESSED : 0);
+		putInt(b, 2, transferId);
+		putInt(b, 6, filePackageSize);
+		putInt(b, 10, packageSize);
+		putInt(b, 14, packageNo);
+		putInt(b, 18, (int) (offset >>> 32));
+		putInt(b, 22, (int) offset);
+		if (version >= 2)
+			putInt(b, 26, checksum);
+
+		return getSize(version);
+	}
+
+	/**
+	 * Fills the fields of this header from an encoded one.
+	 * 
+	 * @param b
+	 *            The encoded header
+	 * @throws IOException
+	 *             If the header is too short or of an unknown version
+	 */
+	public void decode(byte[] b) throws IOException {
+		if (b.length < SIZE_VERSION_1 || b[0] < 1 || b[0] > VERSION
+				|| (b[0] >= 2 && b.length < SIZE_VERSION_2))
+			throw new IOException("Unknown chunk header");
+
+		compressed = (b[1] & FLAG_COMPRESSED) != 0;
+		transferId = getInt(b, 2);
+		filePackageSize = getInt(b, 6);
+		packageSize = getInt(b, 10);
+		packageNo = getInt(b, 14);
+		offset = ((long) getInt(b, 18) << 32) | (getInt(b, 22) & 0xffffffffL);
+		hasChecksum = b[0] >= 2;
+		checksum = hasChecksum ? getInt(b, 26) : 0;
+	}
+
+	private static void putInt(byte[] b, int index, int value) {
+		b[index] = (byte) (value >>> 24);
+		b[index + 1] = (byte) (value >>> 16);
+		b[index + 2] = (byte) (value >>> 8);
+		b[index + 3] = (byte) value;
+	}
+
+	private static int getInt(byte[] b, int index) {
+		return (b[index] << 24) | ((b[index + 1] & 0xff) << 16)
+				| ((b[index + 2] & 0xff) << 8) | (b[index + 3] & 0xff);
+	}
+}
@@ -0,0 +1,125 @@
+package jxtaapp.service;
+
+/**
+ * Chooses the size of the chunks of a file transfer to one peer (see
+ * {@link FileTransfer}). A chunk is a run of consecutive packages sent in one
+ * message; small chunks lose less on lossy relayed links, large chunks have
+ * less overhead on fast links.
+ * <p>
+ * The controller measures the round trip time of every acknowledged chunk
+ * and the throughput over every {@link #ADJUST_INTERVAL} acknowledgements.
+ * After each interval the chunk grows by one package while the throughput
+ * does not drop, and shrinks by one package if it drops or if the round trip
+ * time exceeds {@link #TARGET_RTT}. A lost chunk halves the chunk size. One
+ * controller is kept per peer, so the next transfer starts with the learned
+ * size.
+ */
+class ChunkSizeController {
+	private final static int MIN_PACKAGES = 1;
+	public final static int MAX_PACKAGES = 32;
+	private final static int INITIAL_PACKAGES = 3;
+	private final static int ADJUST_INTERVAL = 8;
+	private final static long TARGET_RTT = 2 * 1000;
+	private final static long MIN_RETRANSMISSION_TIMEOUT = 1 * 1000;
+
+	private int packages = INITIAL_PACKAGES;
+	private long smoothedRtt = -1;
+	private long rttVariation = 0;
+	private double throughput = 0;
+	private long intervalStart = 0;
+	private long intervalBytes = 0;
+	private int intervalAcks = 0;
+
+	/**
+	 * @return Number of packages for the next chunk
+	 */
+	public synchronized int getChunkPackages() {
+		return packages;
+	}
+
+	/**
+	 * @return Smoothed round trip time in milliseconds, -1 if not measured yet
+	 */
+	public synchronized long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+	/**
+	 * @return Throughput of the last interval in bytes per second
+	 */
+	public synchronized double getThroughput() {
+		return throughput;
+	}
+
+	/**
+	 * Timeout for the acknowledgement of a chunk derived from the measured
+	 * round trip time (smoothed round trip time plus four times its
+	 * variation).
+	 * 
+	 * @param maxTimeout
+	 *            Timeout to use without measurement and upper bound
+	 * @return Timeout in milliseconds
+	 */
+	public synchronized long getRetransmissionTimeout(long maxTimeout) {
+		if (smoothedRtt == -1)
+			return maxTimeout;
+
+		return Math.min(maxTimeout, Math.max(MIN_RETRANSMISSION_TIMEOUT,
+				smoothedRtt + 4 * rttVariation));
+	}
+
+	/**
+	 * Called for every acknowledged chunk.
+	 * 
+	 * @param bytes
+	 *            Size of the chunk
+	 * @param rtt
+	 *            Round trip time of the chunk, -1 if the chunk was
+	 *            retransmitted and the time is ambiguous
+	 */
+	public synchronized void acknowledged(long bytes, long rtt) {
+		long now = System.currentTimeMillis();
+
+		if (rtt >= 0) {
+			if (smoothedRtt == -1) {
+				smoothedRtt = rtt;
+				rttVariation = rtt / 2;
+			} else {
+				rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rtt)) / 4;
+				smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+			}
+		}
+
+		if (intervalStart == 0) {
+			intervalStart = now;
+			return;
+		}
+
+		intervalBytes += bytes;
+		if (++intervalAcks < ADJUST_INTERVAL)
+			return;
+
+		long elapsed = now - intervalStart;
+		if (elapsed > 0) {
+			double intervalThroughput = intervalBytes * 1000.0 / elapsed;
+
+			if (smoothedRtt > TARGET_RTT || intervalThroughput < throughput * 0.8)
+				packages = Math.max(MIN_PACKAGES, packages - 1);
+			else if (intervalThroughput >= throughput * 0.95)
+				packages = Math.min(MAX_PACKAGES, packages + 1);
+
+			throughput = intervalThroughput;
+		}
+
+		intervalStart = now;
+		intervalBytes = 0;
+		intervalAcks = 0;
+	}
+
+	/**
+	 * Called if the acknowledgement of a chunk timed out.
+	 */
+	public synchronized void lost() {
+		packages = Math.max(MIN_PACKAGES, packages / 2);
+	}
+}
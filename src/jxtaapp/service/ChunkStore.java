@@ -0,0 +1,268 @@
+package jxtaapp.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jxtaapp.ui.JxtaApp;
+import android.util.Log;
+
+/**
+ * Index of file packages which are already stored on this peer, identified by
+ * the {@link #HASH_ALGORITHM} hash of their content. The index only points
+ * into received files (file, offset and length), the content is not stored a
+ * second time. Because a file may be changed or deleted after it was indexed,
+ * every read verifies the hash again and drops stale entries.
+ * <p>
+ * The index is kept in memory (at most {@link #MAX_CHUNKS} entries, the least
+ * recently used are dropped) and appended to an index file, one record per
+ * package: hash, file path (UTF), long offset, int length.
+ */
+class ChunkStore {
+	public final static String HASH_ALGORITHM = "SHA-1";
+	public final static int HASH_SIZE = 20;
+	private final static int MAX_CHUNKS = 50000;
+
+	private File indexFile;
+	private LinkedHashMap<String, ChunkLocation> index;
+	private int indexFileRecords = 0;
+
+	/**
+	 * Position of a package in a stored file.
+	 */
+	private static class ChunkLocation {
+		String path;
+		long offset;
+		int length;
+
+		ChunkLocation(String path, long offset, int length) {
+			this.path = path;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Loads the index file if it exists.
+	 * 
+	 * @param indexFile
+	 *            The index file
+	 */
+	public ChunkStore(File indexFile) {
+		this.indexFile = indexFile;
+		this.index = new LinkedHashMap<String, ChunkLocation>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<String, ChunkLocation> eldest) {
+				return size() > MAX_CHUNKS;
+			}
+		};
+
+		load();
+	}
+
+	/**
+	 * Adds all packages of a received file to the index.
+	 * 
+	 * @param file
+	 *            The received file
+	 * @param hashes
+	 *            Concatenated hashes of the packages in file order
+	 * @param packageSize
+	 *            Size of all but the last package
+	 */
+	public synchronized void addFile(File file, byte[] hashes, int packageSize) {
+		long fileSize = file.length();
+		int count = hashes.length / HASH_SIZE;
+		DataOutputStream out = null;
+
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(indexFile, true)));
+
+			for (int i = 0; i < count; i++) {
+				long offset = (long) i * packageSize;
+				int length = (int) Math.min(packageSize, fileSize - offset);
+				if (length <= 0)
+					break;
+
+				ChunkLocation location = new ChunkLocation(file.getPath(),
+						offset, length);
+				index.put(toKey(hashes, i * HASH_SIZE), location);
+				write(out, hashes, i * HASH_SIZE, location);
+				// one write per record, so a crash leaves whole records
+				out.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (out != null)
+					out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		indexFileRecords += count;
+		if (indexFileRecords > 2 * MAX_CHUNKS)
+			compact();
+	}
+
+	/**
+	 * Reads a stored package.
+	 * 
+	 * @param hashes
+	 *            Concatenated hashes
+	 * @param hashOffset
+	 *            Position of the hash of the wanted package in hashes
+	 * @return The content of the package or null if it is not stored (any
+	 *         more)
+	 */
+	public byte[] read(byte[] hashes, int hashOffset) {
+		String key = toKey(hashes, hashOffset);
+		ChunkLocation location;
+
+		synchronized (this) {
+			location = index.get(key);
+		}
+		if (location == null)
+			return null;
+
+		byte[] content = new byte[location.length];
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(location.path, "r");
+			raf.seek(location.offset);
+			raf.readFully(content);
+		} catch (IOException e) {
+			content = null;
+		} finally {
+			try {
+				if (raf != null)
+					raf.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		if (content == null
+				|| !toKey(hash(ByteBuffer.wrap(content)), 0).equals(key)) {
+			synchronized (this) {
+				index.remove(key);
+			}
+			return null;
+		}
+
+		return content;
+	}
+
+	/**
+	 * @param content
+	 *            Content from its position to its limit, the position is not
+	 *            changed
+	 * @return The {@link #HASH_ALGORITHM} hash of the content
+	 */
+	public static byte[] hash(ByteBuffer content) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+			digest.update(content.duplicate());
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private String toKey(byte[] hashes, int offset) {
+		StringBuilder key = new StringBuilder(2 * HASH_SIZE);
+		for (int i = offset; i < offset + HASH_SIZE; i++) {
+			key.append(Character.forDigit((hashes[i] >> 4) & 0xf, 16));
+			key.append(Character.forDigit(hashes[i] & 0xf, 16));
+		}
+		return key.toString();
+	}
+
+	private void write(DataOutputStream out, byte[] hashes, int hashOffset,
+			ChunkLocation location) throws IOException {
+		out.write(hashes, hashOffset, HASH_SIZE);
+		out.writeUTF(location.path);
+		out.writeLong(location.offset);
+		out.writeInt(location.length);
+	}
+
+	/**
+	 * Reads the index file, later records replace earlier ones.
+	 */
+	private void load() {
+		if (!indexFile.exists())
+			return;
+
+		DataInputStream in = null;
+		byte[] hash = new byte[HASH_SIZE];
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(indexFile)));
+			while (true) {
+				in.readFully(hash);
+				ChunkLocation location = new ChunkLocation(in.readUTF(), in
+						.readLong(), in.readInt());
+				index.put(toKey(hash, 0), location);
+				indexFileRecords++;
+			}
+		} catch (EOFException e) {
+			// end of index
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		Log.d(JxtaApp.TAG, "FILE: " + index.size() + " stored packages");
+	}
+
+	/**
+	 * Rewrites the index file with the entries in memory only.
+	 */
+	private void compact() {
+		DataOutputStream out = null;
+		byte[] hash = new byte[HASH_SIZE];
+
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(indexFile, false)));
+			for (Map.Entry<String, ChunkLocation> entry : index.entrySet()) {
+				for (int i = 0; i < HASH_SIZE; i++)
+					hash[i] = (byte) Integer.parseInt(entry.getKey().substring(
+							2 * i, 2 * i + 2), 16);
+				write(out, hash, 0, entry.getValue());
+			}
+			indexFileRecords = index.size();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (out != null)
+					out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
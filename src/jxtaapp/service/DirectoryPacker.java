@@ -0,0 +1,161 @@
+package jxtaapp.service;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Packs many small files of a directory into one pack file, so they are sent
+ * as one transfer instead of one transfer per file (see
+ * {@link FileTransfer}), and unpacks such a file on the receiver side.
+ * <p>
+ * Pack format: int {@link #MAGIC}, int number of files, for every file its
+ * path relative to the directory (UTF) and its size (long), followed by the
+ * contents of all files in the same order.
+ */
+class DirectoryPacker {
+	private final static int MAGIC = 0x4a585041;
+
+	/**
+	 * Writes a pack file.
+	 * 
+	 * @param directory
+	 *            The directory the paths in the pack are relative to
+	 * @param files
+	 *            The files to pack, all inside the directory
+	 * @param packFile
+	 *            The pack file to write
+	 * @throws IOException
+	 */
+	public static void pack(File directory, List<File> files, File packFile)
+			throws IOException {
+		FileOutputStream fos = new FileOutputStream(packFile);
+		try {
+			long[] sizes = new long[files.size()];
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(fos));
+
+			out.writeInt(MAGIC);
+			out.writeInt(files.size());
+			for (int i = 0; i < files.size(); i++) {
+				sizes[i] = files.get(i).length();
+				out.writeUTF(getRelativePath(directory, files.get(i)));
+				out.writeLong(sizes[i]);
+			}
+			out.flush();
+
+			FileChannel channel = fos.getChannel();
+			for (int i = 0; i < files.size(); i++) {
+				FileInputStream in = new FileInputStream(files.get(i));
+				try {
+					copy(in.getChannel(), 0, sizes[i], channel);
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Extracts all files of a pack file.
+	 * 
+	 * @param packFile
+	 *            The received pack file
+	 * @param directory
+	 *            The directory to create the files in
+	 * @return Number of extracted files
+	 * @throws IOException
+	 *             If the pack is damaged or contains a path outside the
+	 *             directory
+	 */
+	public static int unpack(File packFile, File directory) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(packFile, "r");
+		try {
+			if (raf.readInt() != MAGIC)
+				throw new IOException("Not a pack file: " + packFile);
+
+			int count = raf.readInt();
+			String[] paths = new String[count];
+			long[] sizes = new long[count];
+			for (int i = 0; i < count; i++) {
+				paths[i] = raf.readUTF();
+				sizes[i] = raf.readLong();
+				if (!isSafePath(paths[i]))
+					throw new IOException("Invalid path in pack file: "
+							+ paths[i]);
+			}
+
+			FileChannel channel = raf.getChannel();
+			long position = raf.getFilePointer();
+			for (int i = 0; i < count; i++) {
+				File file = new File(directory, paths[i]);
+				file.getParentFile().mkdirs();
+
+				FileOutputStream out = new FileOutputStream(file);
+				try {
+					copy(channel, position, sizes[i], out.getChannel());
+				} finally {
+					out.close();
+				}
+				position += sizes[i];
+			}
+
+			return count;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @param path
+	 *            A relative path received from another peer
+	 * @return true if the path stays inside the directory it is relative to
+	 */
+	public static boolean isSafePath(String path) {
+		if (path.length() == 0 || path.startsWith("/")
+				|| path.indexOf('\\') != -1)
+			return false;
+
+		for (String part : path.split("/")) {
+			if (part.length() == 0 || part.equals(".") || part.equals(".."))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param directory
+	 *            A directory
+	 * @param file
+	 *            A file inside the directory
+	 * @return Path of the file relative to the directory, separated by "/"
+	 */
+	public static String getRelativePath(File directory, File file) {
+		String path = file.getName();
+		for (File parent = file.getParentFile(); parent != null
+				&& !parent.equals(directory); parent = parent.getParentFile())
+			path = parent.getName() + "/" + path;
+
+		return path;
+	}
+
+	private static void copy(FileChannel from, long position, long size,
+			FileChannel to) throws IOException {
+		long copied = 0;
+		while (copied < size) {
+			long n = from.transferTo(position + copied, size - copied, to);
+			if (n <= 0)
+				throw new IOException("File changed while packing");
+			copied += n;
+		}
+	}
+}
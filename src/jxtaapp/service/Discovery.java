@@ -1,12 +1,14 @@
 package jxtaapp.service;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import jxtaapp.ui.JxtaApp;
 import net.jxta.discovery.DiscoveryEvent;
@@ -18,6 +20,7 @@ import net.jxta.id.ID;
 import net.jxta.id.IDFactory;
 import net.jxta.peergroup.PeerGroup;
 import net.jxta.peergroup.PeerGroupID;
+import net.jxta.pipe.InputPipe;
 import net.jxta.pipe.PipeMsgListener;
 import net.jxta.pipe.PipeService;
 import net.jxta.platform.NetworkManager;
@@ -32,6 +35,11 @@ import android.util.Log;
  * runs in this own thread, creates own pipe advertisement, handles received
  * discovery messages, manages a list of peers in the network and sends a
  * discovery message every {@link #DISCOVERY_WAITTIME} milliseconds.
+ * <p>
+ * Next to the own unicast pipe advertisement it publishes a propagate pipe
+ * advertisement for every joined room ({@link #joinRoom(String)}). The pipe ID
+ * of a room is derived from its name, so all peers in a room listen on the
+ * same pipe and one message sent to it reaches all of them.
  * 
  * @see net.jxta.discovery.DiscoveryService
  */
@@ -42,10 +50,15 @@ public class Discovery implements Runnable, DiscoveryListener {
 	private DiscoveryService discoveryService;
 	private PipeService pipeService;
 	private List<Peer> peerList;
+	private List<PeerListener> peerListeners;
+	private Map<String, PipeAdvertisement> roomAdvertisements;
+	private Map<String, InputPipe> roomPipes;
 
 	private final static long ADVERTISEMENT_LIFETIME = 60 * 60 * 1000;
 	private final static long ADVERTISEMENT_EXPIRATION = 60 * 60 * 1000;
 	private final static long DISCOVERY_WAITTIME = 1 * 60 * 1000;
+	private final static long REAPPEAR_TIME = 3 * DISCOVERY_WAITTIME;
+	private final static String ROOM_PREFIX = "Room:";
 
 	private PipeAdvertisement advertisement;
 	private ID advertisementPipeId;
@@ -69,6 +82,9 @@ public class Discovery implements Runnable, DiscoveryListener {
 		this.pipeMsgListener = pipeMsgListener;
 
 		peerList = Collections.synchronizedList(new ArrayList<Peer>());
+		peerListeners = new CopyOnWriteArrayList<PeerListener>();
+		roomAdvertisements = new HashMap<String, PipeAdvertisement>();
+		roomPipes = new HashMap<String, InputPipe>();
 
 		PeerGroup netPeerGroup = manager.getNetPeerGroup();
 		discoveryService = netPeerGroup.getDiscoveryService();
@@ -82,6 +98,14 @@ public class Discovery implements Runnable, DiscoveryListener {
 		createPipeAdvertisement();
 	}
 
+	public void addPeerListener(PeerListener listener) {
+		peerListeners.add(listener);
+	}
+
+	public void removePeerListener(PeerListener listener) {
+		peerListeners.remove(listener);
+	}
+
 	/**
 	 * Starts the discovery service wrapper
 	 */
@@ -109,6 +133,9 @@ public class Discovery implements Runnable, DiscoveryListener {
 				discoveryService.remotePublish(getPipeAdvertisement(),
 						ADVERTISEMENT_EXPIRATION);
 
+				for (PipeAdvertisement roomAdvertisement : getRoomAdvertisements())
+					publish(roomAdvertisement);
+
 			} catch (Exception e) {
 				Log
 						.d(JxtaApp.TAG,
@@ -177,6 +204,105 @@ public class Discovery implements Runnable, DiscoveryListener {
 		return advertisement;
 	}
 
+	/**
+	 * Joins a room: creates the propagate pipe advertisement of the room,
+	 * listens on its pipe and publishes it. Joining a room twice has no
+	 * effect.
+	 * 
+	 * @param room
+	 *            Name of the room
+	 * @return The advertisement of the room for the output pipe
+	 * @throws IOException
+	 *             If the input pipe of the room cannot be created
+	 */
+	public PipeAdvertisement joinRoom(String room) throws IOException {
+		synchronized (roomAdvertisements) {
+			PipeAdvertisement adv = roomAdvertisements.get(room);
+			if (adv != null)
+				return adv;
+
+			adv = createRoomAdvertisement(room);
+			roomPipes.put(room, pipeService
+					.createInputPipe(adv, pipeMsgListener));
+			roomAdvertisements.put(room, adv);
+			publish(adv);
+
+			Log.d(JxtaApp.TAG, "Joined room " + room);
+			return adv;
+		}
+	}
+
+	/**
+	 * Stops listening on the pipe of a room.
+	 * 
+	 * @param room
+	 *            Name of the room
+	 */
+	public void leaveRoom(String room) {
+		synchronized (roomAdvertisements) {
+			roomAdvertisements.remove(room);
+			InputPipe pipe = roomPipes.remove(room);
+			if (pipe != null)
+				pipe.close();
+		}
+	}
+
+	/**
+	 * @param room
+	 *            Name of the room
+	 * @return Advertisement of a joined room or null
+	 */
+	public PipeAdvertisement getRoomAdvertisement(String room) {
+		synchronized (roomAdvertisements) {
+			return roomAdvertisements.get(room);
+		}
+	}
+
+	private List<PipeAdvertisement> getRoomAdvertisements() {
+		synchronized (roomAdvertisements) {
+			return new ArrayList<PipeAdvertisement>(roomAdvertisements
+					.values());
+		}
+	}
+
+	/**
+	 * Creates the propagate pipe advertisement of a room, the pipe ID is
+	 * derived from the name of the room.
+	 * 
+	 * @param room
+	 *            Name of the room
+	 * @return The advertisement
+	 */
+	private PipeAdvertisement createRoomAdvertisement(String room) {
+		byte[] seed;
+		try {
+			seed = ("jxtaapp room " + room).getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+
+		PipeAdvertisement adv = (PipeAdvertisement) AdvertisementFactory
+				.newAdvertisement(PipeAdvertisement.getAdvertisementType());
+		adv.setPipeID(IDFactory.newPipeID(PeerGroupID.defaultNetPeerGroupID,
+				seed));
+		adv.setType(PipeService.PropagateType);
+		adv.setName(ROOM_PREFIX + room);
+
+		return adv;
+	}
+
+	private void publish(PipeAdvertisement adv) {
+		try {
+			discoveryService.publish(adv, ADVERTISEMENT_LIFETIME,
+					ADVERTISEMENT_EXPIRATION);
+			discoveryService.remotePublish(adv, ADVERTISEMENT_EXPIRATION);
+		} catch (IOException e) {
+			Log.d(JxtaApp.TAG, "Discovery service failed to publish room "
+					+ adv.getName());
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * This method is called whenever a discovery response is received, which
 	 * are either in response to a query we sent, or a remote publish by another
@@ -219,7 +345,9 @@ public class Discovery implements Runnable, DiscoveryListener {
 					// change the list only when the new peer is not the
 					// current peer itself
 					if (pipeAdv.getName() != null
-							&& !pipeAdv.getName().equals(instanceName)) {
+							&& !pipeAdv.getName().equals(instanceName)
+							&& !PipeService.PropagateType.equals(pipeAdv
+									.getType())) {
 						Peer newPeer = new Peer(pipeAdv);
 
 						addPeerListItem(newPeer);
@@ -242,19 +370,33 @@ public class Discovery implements Runnable, DiscoveryListener {
 
 	/**
 	 * Add a discovered peer to the local list and also checks if it is already
-	 * included there.
+	 * included there. The {@link PeerListener}s are told about a new peer and
+	 * about a known one which reappeared: one with a new pipe, e.g. after a
+	 * restart, or one not discovered for {@link #REAPPEAR_TIME}.
 	 * 
 	 * @param peer
 	 */
 	private synchronized void addPeerListItem(Peer peer) {
+		long now = System.currentTimeMillis();
+		boolean appeared = true;
+
 		if (peerList.contains(peer)) {
 			Peer peerInList = peerList.get(peerList.indexOf(peer));
+			appeared = now - peerInList.getLastUpdate() >= REAPPEAR_TIME
+					|| !peerInList.getPipeAdvertisement().getPipeID().equals(
+							peer.getPipeAdvertisement().getPipeID());
 			peerInList.setPipeAdvertisement(peer.getPipeAdvertisement());
-			peerInList.setLastUpdate(System.currentTimeMillis());
+			peerInList.setLastUpdate(now);
+			peer = peerInList;
 		} else {
 			peerList.add(peer);
 		}
 
+		if (appeared) {
+			for (PeerListener listener : peerListeners)
+				listener.peerDiscovered(peer);
+		}
+
 		JxtaApp.handler.post(new Runnable() {
 			public void run() {
 				synchronized (peerList) {
@@ -1,12 +1,29 @@
 package jxtaapp.service;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jxtaapp.ui.JxtaApp;
 import net.jxta.endpoint.ByteArrayMessageElement;
@@ -24,14 +41,131 @@ import android.util.Log;
  * {@link Jxta.MessageType}</li>
  * <li>StringMessageElement: "From" as name, the peer ID of the sender</li>
  * <li>StringMessageElement: "FromName" as name, the name of the sender</li>
+ * <li>StringMessageElement: "Filename" as name, the name of the file</li>
+ * <li>StringMessageElement: "FilePackageSize" as name, number of packages</li>
+ * <li>StringMessageElement: "PackageSize" as name, size of this chunk</li>
+ * <li>StringMessageElement: "PackageNo" as name, first package of this
+ * chunk</li>
+ * <li>StringMessageElement: "Offset" as name, position of this chunk in the
+ * file</li>
+ * <li>StringMessageElement: "Encoding" as name, only if the content is
+ * compressed, see {@link ChunkCompressor}</li>
  * <li>StringMessageElement: "Content" as name, a file part</li>
  * </ol>
+ * The file is divided into packages of {@link #PACKAGE_SIZE} bytes, the unit
+ * for acknowledgements, resuming and hashes. One message carries a chunk of
+ * consecutive packages, its size is adapted to the measured throughput and
+ * round trip time of the receiving peer ({@link ChunkSizeController}). A
+ * chunk whose offset is not the position of its first package is dropped;
+ * peers from before the 32 KB packages send no "Offset" and are not
+ * supported.
+ * <p>
+ * The file is sent with a sliding window: up to {@link #WINDOW_SIZE} chunks
+ * are in flight, the receiver acknowledges every chunk with a
+ * {@link Jxta.MessageType#FILE_ACK} message ("Type", "From", "FromName",
+ * "Filename" and "PackageNo") and chunks which are not acknowledged within
+ * the retransmission timeout (at most {@link #ACK_TIMEOUT}) are sent again.
+ * <p>
+ * Before the first package the sender offers the transfer with a
+ * {@link Jxta.MessageType#FILE_OFFER} message ("Type", "From", "FromName",
+ * "Filename", "FilePackageSize" and "FileSize"). The receiver answers with a
+ * {@link Jxta.MessageType#FILE_ACK} message which carries a bitmap of the
+ * packages it already has from an interrupted attempt ("Received"), so only
+ * the missing packages are sent.
+ * <p>
+ * The offer carries an id of the transfer ("TransferId"). A receiver which
+ * understands {@link ChunkHeader}s says so in its answer ("ChunkHeader"), and
+ * the chunks are then sent with one binary header element instead of the
+ * string elements "Filename" to "Encoding" above. Chunks to older peers keep
+ * the string elements.
+ * <p>
+ * Every chunk carries a {@link ChunkChecksum} of its content (in the header or
+ * as "Checksum" element). A chunk which arrives damaged, or whose packages do
+ * not match the offered hashes, is not written; the receiver answers with a
+ * {@link Jxta.MessageType#FILE_ACK} with a "Resend" element and the sender
+ * sends it again at once. A chunk which the receiver drops because its
+ * {@link ReceiveQueue} is full is answered with a "SlowDown" element, the
+ * sender then shrinks its window and sends the chunk again later (see
+ * {@link OutgoingFileTransfer#slowDown(int, long)}). The offer also carries
+ * the {@link MerkleTree} root of the file ("MerkleRoot"), which the receiver
+ * checks against the hashes of the arrived packages when the file is
+ * complete.
+ * <p>
+ * The offer also lists the {@link ChunkStore#HASH_ALGORITHM} hash of every
+ * package ("PackageHashes"). The receiver keeps an index of the packages of
+ * all completely received files by hash ({@link ChunkStore}); packages found
+ * there are copied locally and reported as received, so a file which is sent
+ * again (or a changed version of it) only transfers the new packages.
+ * <p>
+ * A file can also be downloaded from several peers at once
+ * ({@link #downloadFile(Jxta, String, List)}): the receiver asks the peers
+ * with a {@link Jxta.MessageType#FILE_REQUEST} message ("Filename",
+ * "PackageNo" 0) for the file, every peer which shares it answers with an
+ * offer, and then ranges of packages ("PackageNo", "PackageCount") are
+ * requested from the peers in parallel (see {@link SwarmDownload}). Offers and
+ * chunks of such a download carry a "Swarm" element and are not acknowledged.
+ * A peer shares the files it sent and the files it received completely.
+ * <p>
+ * A directory is sent file by file with names relative to its parent
+ * ("photos/2009/a.jpg"), the receiver recreates the tree below
+ * {@link #DIRECTORY_FOR_RECEIVED}. Files smaller than
+ * {@link #SMALL_FILE_SIZE} are packed together into pack files of up to
+ * {@link #MAX_PACK_SIZE} bytes ({@link DirectoryPacker}), which are sent like
+ * one large file and unpacked by the receiver.
+ * <p>
+ * Files of at least {@link #STREAM_THRESHOLD} bytes are streamed if both peers
+ * support it: the offer carries a "Stream" element, a receiver which listens
+ * for streams ({@link StreamTransport}) repeats it in its answer, and the
+ * sender then writes the missing packages over a {@link Socket} in chunks of
+ * up to {@link #STREAM_CHUNK_PACKAGES} packages, without a message and an
+ * acknowledgement per chunk. At the end the receiver answers with the bitmap
+ * of its received packages; packages missing after a broken stream are sent
+ * as messages. Smaller files always use messages, which need no connection
+ * setup.
  */
 public class FileTransfer {
-	private final int PACKAGE_SIZE = 100000;
+	private final int PACKAGE_SIZE = 32 * 1024;
+	private final int MAX_CHUNK_SIZE = ChunkSizeController.MAX_PACKAGES
+			* PACKAGE_SIZE;
+	private final int WINDOW_SIZE = 8;
+	private final long ACK_TIMEOUT = 5 * 1000;
+	private final int MAX_RETRANSMISSIONS = 5;
 	private final String DIRECTORY_FOR_RECEIVED = "/sdcard";
+	private final int MAX_OPEN_FILES = 8;
+	private final long WRITER_IDLE_TIMEOUT = 2 * 60 * 1000;
+	private final boolean PREALLOCATE_RECEIVED_FILES = true;
+	private final int MAX_OFFER_HASHES_SIZE = 100000;
+	private final boolean COMPRESS_CHUNKS = true;
+	private final int MAX_SERVED_FILES = 4;
+	private final int MAX_HASHED_FILES = 8;
+	private final String SWARM = "Swarm";
+	private final String SWARM_PEER = "\0" + SWARM;
+	private final int MAX_TRANSFER_IDS = 64;
+	private final long SMALL_FILE_SIZE = 8 * PACKAGE_SIZE;
+	private final long MAX_PACK_SIZE = 8 * 1024 * 1024;
+	private final String PACK_PREFIX = ".pack";
+	private final long STREAM_THRESHOLD = 4 * 1024 * 1024;
+	private final int STREAM_CHUNK_PACKAGES = 8;
+	private final int STREAM_BUFFER_SIZE = 64 * 1024;
+	private final int STREAM_TIMEOUT = 60 * 1000;
 	private String peerId;
 	private String instanceName;
+	private Map<String, OutgoingFileTransfer> outgoingTransfers;
+	private Map<String, ChunkSizeController> chunkSizeControllers;
+	private LinkedHashMap<String, IncomingFileTransfer> incomingTransfers;
+	private Timer idleWriterTimer;
+	private ChunkStore chunkStore;
+	private Map<String, SwarmDownload> swarmDownloads;
+	private Map<String, File> sharedFiles;
+	private LinkedHashMap<String, MappedFileReader> servedFiles;
+	private Map<String, byte[]> packageHashes;
+	private Map<String, String> transferIds;
+	private AtomicInteger nextTransferId;
+	private volatile TransferScheduler transferScheduler = null;
+	private volatile StreamTransport streamTransport = null;
+	private ReceiveQueue receiveQueue;
+	private TransferMonitor transferMonitor;
+	private PriorityGate priorityGate = new PriorityGate();
 
 	/**
 	 * Constructor for file transfer manager
@@ -44,131 +178,1937 @@ public class FileTransfer {
 	public FileTransfer(String peerId, String instanceName) {
 		this.peerId = peerId;
 		this.instanceName = instanceName;
+		this.outgoingTransfers = Collections
+				.synchronizedMap(new HashMap<String, OutgoingFileTransfer>());
+		this.chunkSizeControllers = new HashMap<String, ChunkSizeController>();
+		this.swarmDownloads = Collections
+				.synchronizedMap(new HashMap<String, SwarmDownload>());
+		this.sharedFiles = Collections
+				.synchronizedMap(new HashMap<String, File>());
+		this.transferIds = Collections
+				.synchronizedMap(new LinkedHashMap<String, String>() {
+					protected boolean removeEldestEntry(
+							Map.Entry<String, String> eldest) {
+						return size() > MAX_TRANSFER_IDS;
+					}
+				});
+		this.nextTransferId = new AtomicInteger(1);
+		this.servedFiles = new LinkedHashMap<String, MappedFileReader>(
+				MAX_SERVED_FILES, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<String, MappedFileReader> eldest) {
+				if (size() <= MAX_SERVED_FILES)
+					return false;
+
+				try {
+					eldest.getValue().close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				return true;
+			}
+		};
+
+		this.packageHashes = Collections
+				.synchronizedMap(new LinkedHashMap<String, byte[]>(
+						MAX_HASHED_FILES, 0.75f, true) {
+					protected boolean removeEldestEntry(
+							Map.Entry<String, byte[]> eldest) {
+						return size() > MAX_HASHED_FILES;
+					}
+				});
+
+		// access ordered, so the least recently written file is closed first
+		this.incomingTransfers = new LinkedHashMap<String, IncomingFileTransfer>(
+				MAX_OPEN_FILES, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<String, IncomingFileTransfer> eldest) {
+				if (size() <= MAX_OPEN_FILES)
+					return false;
+
+				Log.d(JxtaApp.TAG, "FILE: too many open files, close "
+						+ eldest.getKey());
+				eldest.getValue().close();
+				return true;
+			}
+		};
+
+		this.chunkStore = new ChunkStore(new File(DIRECTORY_FOR_RECEIVED
+				+ "/.received_chunks"));
+
+		this.idleWriterTimer = new Timer("File Writer Timer", true);
+		this.idleWriterTimer.schedule(new TimerTask() {
+			public void run() {
+				closeIdleIncomingTransfers();
+			}
+		}, WRITER_IDLE_TIMEOUT / 2, WRITER_IDLE_TIMEOUT / 2);
+
+		this.transferMonitor = new TransferMonitor();
+		this.receiveQueue = new ReceiveQueue(this);
+	}
+
+	/**
+	 * @param priorityGate
+	 *            Gate shared with the other services, so chunks are sent after
+	 *            control and interactive messages
+	 */
+	void setPriorityGate(PriorityGate priorityGate) {
+		this.priorityGate = priorityGate;
 	}
 
 	/**
-	 * Build a JXTA message object, splits the file into packets of size
-	 * {@link #PACKAGE_SIZE} in bytes and sends this parts over the given output
-	 * pipe.
+	 * Closes all files of incoming transfers.
+	 */
+	public void stop() {
+		idleWriterTimer.cancel();
+		receiveQueue.stop();
+
+		synchronized (incomingTransfers) {
+			for (IncomingFileTransfer transfer : incomingTransfers.values())
+				transfer.close();
+			incomingTransfers.clear();
+		}
+
+		synchronized (servedFiles) {
+			for (MappedFileReader reader : servedFiles.values()) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			servedFiles.clear();
+		}
+	}
+
+	/**
+	 * @param transferScheduler
+	 *            Scheduler which paces the chunks of all transfers, null to
+	 *            send them unpaced
+	 */
+	void setTransferScheduler(TransferScheduler transferScheduler) {
+		this.transferScheduler = transferScheduler;
+	}
+
+	/**
+	 * @param streamTransport
+	 *            Streams of large files, null to send all files as messages
+	 */
+	void setStreamTransport(StreamTransport streamTransport) {
+		this.streamTransport = streamTransport;
+	}
+
+	/**
+	 * Splits the file into chunks of packages of size {@link #PACKAGE_SIZE}
+	 * in bytes and sends this parts over the given output pipe. The chunks are
+	 * slices of the memory mapped file (see {@link MappedFileReader}), so they
+	 * are not copied to the heap before they are written to the pipe. Up to
+	 * {@link #WINDOW_SIZE} chunks are sent without waiting for an
+	 * acknowledgement, a chunk is retransmitted if its acknowledgement does
+	 * not arrive within the retransmission timeout. Blocks until all packages
+	 * are acknowledged.
 	 * 
 	 * @param pipe
 	 *            An output pipe for the message
 	 * @param filepath
-	 *            Path of the file to send
+	 *            Path of the file to send, a directory is sent with
+	 *            {@link #sendDirectory(OutputPipe, File)}
+	 * @return true if the receiver acknowledged all packages
+	 */
+	public boolean sendFile(OutputPipe pipe, String filepath) {
+		File file = new File(filepath);
+
+		if (file.isDirectory())
+			return sendDirectory(pipe, file);
+
+		return sendFile(pipe, file, file.getName(), true);
+	}
+
+	/**
+	 * Sends all files of a directory: large files one by one, small files
+	 * packed together into pack files (see {@link DirectoryPacker}).
+	 * 
+	 * @param pipe
+	 *            An output pipe for the messages
+	 * @param directory
+	 *            The directory to send
+	 * @return true if the receiver acknowledged all files
+	 */
+	private boolean sendDirectory(OutputPipe pipe, File directory) {
+		List<File> files = new ArrayList<File>();
+		List<File> smallFiles = new ArrayList<File>();
+		long packSize = 0;
+		int packNo = 0;
+
+		listFiles(directory, files);
+		for (File file : files) {
+			if (file.length() >= SMALL_FILE_SIZE) {
+				if (!sendFile(pipe, file, directory.getName() + "/"
+						+ DirectoryPacker.getRelativePath(directory, file),
+						true))
+					return false;
+				continue;
+			}
+
+			smallFiles.add(file);
+			packSize += file.length();
+			if (packSize >= MAX_PACK_SIZE) {
+				if (!sendPack(pipe, directory, smallFiles, ++packNo))
+					return false;
+				smallFiles.clear();
+				packSize = 0;
+			}
+		}
+
+		if (!smallFiles.isEmpty())
+			return sendPack(pipe, directory, smallFiles, ++packNo);
+
+		return true;
+	}
+
+	/**
+	 * Packs small files of a directory into a temporary pack file and sends
+	 * it. Every pack gets a file of its own, so uploads of the same directory
+	 * to several peers do not overwrite each other's pack. A pack is not
+	 * shared, it is deleted after sending.
+	 * 
+	 * @param pipe
+	 *            An output pipe for the messages
+	 * @param directory
+	 *            The sent directory
+	 * @param files
+	 *            The files to pack
+	 * @param packNo
+	 *            Number of the pack within the directory
+	 * @return true if the receiver acknowledged the pack
+	 */
+	private boolean sendPack(OutputPipe pipe, File directory,
+			List<File> files, int packNo) {
+		File packDirectory = new File(DIRECTORY_FOR_RECEIVED
+				+ "/.outgoing_packs");
+		File packFile = null;
+
+		try {
+			packDirectory.mkdirs();
+			packFile = File.createTempFile(directory.getName() + PACK_PREFIX
+					+ packNo + "-", null, packDirectory);
+			DirectoryPacker.pack(directory, files, packFile);
+
+			return sendFile(pipe, packFile, directory.getName() + "/"
+					+ PACK_PREFIX + packNo, false);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			if (packFile != null)
+				packFile.delete();
+		}
+	}
+
+	/**
+	 * Adds all files below a directory to a list, in a stable order.
+	 * 
+	 * @param directory
+	 *            The directory
+	 * @param files
+	 *            The list
+	 */
+	private void listFiles(File directory, List<File> files) {
+		File[] children = directory.listFiles();
+		if (children == null)
+			return;
+
+		Arrays.sort(children);
+		for (File child : children) {
+			if (child.isDirectory())
+				listFiles(child, files);
+			else
+				files.add(child);
+		}
+	}
+
+	/**
+	 * Sends a file under the given name, see
+	 * {@link #sendFile(OutputPipe, String)}.
+	 * 
+	 * @param pipe
+	 *            An output pipe for the message
+	 * @param file
+	 *            The file to send
+	 * @param filename
+	 *            Name of the file on the receiver side, may contain a
+	 *            relative path
+	 * @param share
+	 *            true to offer the file to swarm downloads of other peers,
+	 *            false for a temporary file
+	 * @return true if the receiver acknowledged all packages
 	 */
-	public void sendFile(OutputPipe pipe, String filepath) {
-		File file;
-		FileInputStream fileStream;
-		int length;
-		int packageNo = 0;
-		byte[] buffer = new byte[PACKAGE_SIZE];
+	private boolean sendFile(OutputPipe pipe, File file, String filename,
+			boolean share) {
+		String transferKey = getTransferKey(pipe.getName(), filename);
+		MappedFileReader reader = null;
+
+		if (share)
+			sharedFiles.put(filename, file);
 
 		try {
-			file = new File(filepath);
-			fileStream = new FileInputStream(filepath);
-
-			do {
-				length = fileStream.read(buffer);
-
-				Message msg = new Message();
-				msg.addMessageElement(new StringMessageElement("Type",
-						Jxta.MessageType.FILE.toString(), null));
-				msg.addMessageElement(new StringMessageElement("From", peerId,
-						null));
-				msg.addMessageElement(new StringMessageElement("FromName",
-						instanceName, null));
-
-				msg.addMessageElement(new StringMessageElement("Filename", file
-						.getName(), null));
-				msg.addMessageElement(new StringMessageElement(
-						"FilePackageSize", String.valueOf((Math.round((file
-								.length() / PACKAGE_SIZE)) + 2)), null));
-				msg.addMessageElement(new StringMessageElement("PackageSize",
-						String.valueOf(length), null));
-				msg.addMessageElement(new StringMessageElement("PackageNo",
-						String.valueOf(++packageNo), null));
-
-				if (length != -1)
-					msg.addMessageElement(new ByteArrayMessageElement(
-							"Content", null, buffer.clone(), null));
-				else
-					msg.addMessageElement(new ByteArrayMessageElement(
-							"Content", null, new byte[0], null));
-
-				// System.out.println("send content (" + String.valueOf(length)
-				// + "; " + String.valueOf(count) + "): " + new String(buffer));
-
-				pipe.send(msg);
-			} while (length != -1);
-			fileStream.close();
+			reader = new MappedFileReader(file);
+			int packageCount = (int) ((reader.getFileSize() + PACKAGE_SIZE - 1) / PACKAGE_SIZE) + 1;
+			ChunkSizeController chunkSizeController = getChunkSizeController(pipe
+					.getName());
+			OutgoingFileTransfer transfer = new OutgoingFileTransfer(
+					packageCount, PACKAGE_SIZE, reader.getFileSize(),
+					WINDOW_SIZE, chunkSizeController);
+			if (COMPRESS_CHUNKS)
+				transfer.setChunkCompressor(new ChunkCompressor());
+			transfer.setTransferId(nextTransferId.getAndIncrement());
+			transfer.setStats(transferMonitor.start(true, pipe.getName(),
+					filename, reader.getFileSize()));
+			outgoingTransfers.put(transferKey, transfer);
+			int nextPackageNo = 1;
+
+			sendFileOffer(pipe, filename, transfer.getTransferId(),
+					packageCount, reader.getFileSize(), getPackageHashes(
+							file, reader, packageCount),
+					streamTransport != null
+							&& reader.getFileSize() >= STREAM_THRESHOLD);
+			if (!transfer.waitForOfferAnswer(ACK_TIMEOUT))
+				Log.d(JxtaApp.TAG, "FILE: no answer to offer of "
+						+ filename + ", send all packages");
+
+			if (transfer.getStreamPeerId() != null
+					&& !sendStream(pipe.getName(), reader, filename,
+							transfer))
+				Log.d(JxtaApp.TAG, "FILE: stream of " + filename
+						+ " incomplete, send missing packages as messages");
+
+			while (!transfer.isComplete()) {
+				while (nextPackageNo <= packageCount
+						&& transfer.getInFlightCount() < transfer.getWindow()) {
+					if (transfer.isAcknowledged(nextPackageNo)) {
+						nextPackageNo++;
+						continue;
+					}
 
+					int packages = transfer.nextChunk(nextPackageNo);
+					sendChunk(pipe, reader, filename, transfer,
+							nextPackageNo, packages);
+					nextPackageNo += packages;
+				}
+
+				long timeout = chunkSizeController
+						.getRetransmissionTimeout(ACK_TIMEOUT);
+				transfer.waitForAcknowledgement(timeout);
+				if (transfer.isAborted()) {
+					Log.d(JxtaApp.TAG, "FILE: transfer of " + filename
+							+ " to " + pipe.getName() + " aborted");
+					return false;
+				}
+
+				List<Integer> expired = transfer.getExpired(timeout,
+						MAX_RETRANSMISSIONS);
+				if (expired == null) {
+					Log.d(JxtaApp.TAG, "FILE: no acknowledgement from "
+							+ pipe.getName() + ", transfer of "
+							+ filename + " aborted");
+					return false;
+				}
+				for (Integer packageNo : expired) {
+					Log.d(JxtaApp.TAG, "FILE: retransmit chunk " + packageNo
+							+ " of " + filename);
+					transfer.getStats().addRetransmission();
+					sendChunk(pipe, reader, filename, transfer,
+							packageNo.intValue(), transfer
+									.getChunkPackages(packageNo.intValue()));
+				}
+			}
+
+			return true;
 		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			OutgoingFileTransfer transfer = outgoingTransfers
+					.remove(transferKey);
+			if (transfer != null && transfer.getChunkCompressor() != null)
+				transfer.getChunkCompressor().end();
+			if (transfer != null && transfer.getStats() != null)
+				transfer.getStats().finish(transfer.isComplete());
+			try {
+				if (reader != null)
+					reader.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
+
+		return false;
 	}
 
 	/**
-	 * Handles all receiving file messages (respectively the parts), extracts
-	 * the parts and combine it to the full file. It stores all parts directly
-	 * in the predefined directory {@link #DIRECTORY_FOR_RECEIVED}
+	 * Sends the packages which are not acknowledged yet over a stream to the
+	 * receiver, which accepted it in its answer to the offer. The stream
+	 * starts with the name of the sender and the file, the number of packages
+	 * and the file size; every chunk is its first package and its length
+	 * followed by the content, the end of file package has the length -1.
+	 * 
+	 * @param peername
+	 *            Name of the receiving peer
+	 * @param reader
+	 *            The file to send
+	 * @param filename
+	 *            Name of the file on the receiver side
+	 * @param transfer
+	 *            State of the transfer
+	 * @return true if the receiver has all packages
+	 * @throws InterruptedException
+	 */
+	private boolean sendStream(String peername, MappedFileReader reader,
+			String filename, OutgoingFileTransfer transfer)
+			throws InterruptedException {
+		StreamTransport transport = streamTransport;
+		Socket socket = null;
+
+		if (transport == null)
+			return false;
+
+		try {
+			socket = transport.connect(transfer.getStreamPeerId());
+			socket.setSoTimeout(STREAM_TIMEOUT);
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream(),
+							STREAM_BUFFER_SIZE));
+			WritableByteChannel channel = Channels.newChannel(out);
+			int packageCount = transfer.getPackageCount();
+
+			out.writeUTF(instanceName);
+			out.writeUTF(filename);
+			out.writeInt(packageCount);
+			out.writeLong(reader.getFileSize());
+
+			int packageNo = 1;
+			while (packageNo < packageCount) {
+				if (transfer.isAborted())
+					return false;
+				if (transfer.isAcknowledged(packageNo)) {
+					packageNo++;
+					continue;
+				}
+
+				int packages = 1;
+				while (packages < STREAM_CHUNK_PACKAGES
+						&& packageNo + packages < packageCount
+						&& !transfer.isAcknowledged(packageNo + packages))
+					packages++;
+				long offset = (long) (packageNo - 1) * PACKAGE_SIZE;
+				int length = (int) Math.min((long) packages * PACKAGE_SIZE,
+						reader.getFileSize() - offset);
+
+				pace(peername, length);
+				priorityGate.enter(MessagePriority.BULK);
+				out.writeInt(packageNo);
+				out.writeInt(length);
+				ByteBuffer chunk = reader.read(offset, length);
+				while (chunk.hasRemaining())
+					channel.write(chunk);
+				transfer.streamed(packageNo, packages);
+				transfer.getStats().addChunk();
+
+				packageNo += packages;
+			}
+			out.writeInt(packageCount);
+			out.writeInt(-1);
+			out.flush();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+			int bitmapSize = in.readInt();
+			if (bitmapSize < 0 || bitmapSize > packageCount / 8 + 1)
+				throw new IOException("Invalid bitmap of " + bitmapSize
+						+ " bytes");
+			byte[] received = new byte[bitmapSize];
+			in.readFully(received);
+			transfer.acknowledge(received);
+
+			return transfer.isComplete();
+		} catch (IOException e) {
+			Log.d(JxtaApp.TAG, "FILE: stream to " + peername + " failed: "
+					+ e.getMessage());
+			return false;
+		} finally {
+			StreamTransport.close(socket);
+		}
+	}
+
+	/**
+	 * Reads one chunk from the file and sends it over the pipe. The end of
+	 * file package is sent alone, without content and with a package size of
+	 * -1.
+	 * 
+	 * @param pipe
+	 *            An output pipe for the message
+	 * @param reader
+	 *            The file to send
+	 * @param filename
+	 *            Name of the file on the receiver side
+	 * @param transfer
+	 *            State of the transfer
+	 * @param packageNo
+	 *            First package of the chunk, starting with 1
+	 * @param packages
+	 *            Number of packages of the chunk
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void sendChunk(OutputPipe pipe, MappedFileReader reader,
+			String filename, OutgoingFileTransfer transfer, int packageNo,
+			int packages) throws IOException, InterruptedException {
+		Message msg = createChunkMessage(reader, filename, transfer
+				.getTransferId(), transfer.getChunkHeaderVersion(), transfer
+				.getPackageCount(), packageNo, packages, transfer
+				.getChunkCompressor());
+
+		pace(pipe.getName(), msg.getByteLength());
+		priorityGate.enter(MessagePriority.BULK);
+		transfer.getStats().addChunk();
+		transfer.getStats().setChunkSize(transfer.getChunkSizeController()
+				.getChunkPackages()
+				* PACKAGE_SIZE);
+		transfer.sent(packageNo, packages);
+		pipe.send(msg);
+	}
+
+	/**
+	 * Builds the message of a chunk.
+	 * 
+	 * @param reader
+	 *            The file to send
+	 * @param filename
+	 *            Name of the file on the receiver side
+	 * @param transferId
+	 *            Id of the transfer for a {@link ChunkHeader}
+	 * @param headerVersion
+	 *            Version of the {@link ChunkHeader}, 0 for the string elements
+	 *            understood by every peer
+	 * @param packageCount
+	 *            Number of packages of the transfer
+	 * @param packageNo
+	 *            First package of the chunk, starting with 1
+	 * @param packages
+	 *            Number of packages of the chunk
+	 * @param compressor
+	 *            Compressor of the transfer or null
+	 * @return The message
+	 * @throws IOException
+	 */
+	private Message createChunkMessage(MappedFileReader reader,
+			String filename, int transferId, int headerVersion,
+			int packageCount, int packageNo, int packages,
+			ChunkCompressor compressor) throws IOException {
+		int length = -1;
+		int checksum = 0;
+		long offset = (long) (packageNo - 1) * PACKAGE_SIZE;
+		MessageElement content;
+		boolean compressed = false;
+
+		if (packageNo < packageCount) {
+			length = (int) Math.min((long) packages * PACKAGE_SIZE, reader
+					.getFileSize()
+					- offset);
+			ByteBuffer chunk = reader.read(offset, length);
+			checksum = ChunkChecksum.compute(chunk);
+			if (compressor != null) {
+				ByteBuffer compressedChunk = compressor.compress(chunk);
+				if (compressedChunk != null) {
+					chunk = compressedChunk;
+					compressed = true;
+				}
+			}
+			content = new ByteBufferMessageElement("Content", null, chunk,
+					null);
+		} else {
+			offset = reader.getFileSize();
+			content = new ByteArrayMessageElement("Content", null,
+					new byte[0], null);
+		}
+
+		Message msg = createMessage(Jxta.MessageType.FILE);
+		if (headerVersion != 0) {
+			ChunkHeader header = new ChunkHeader();
+			header.transferId = transferId;
+			header.filePackageSize = packageCount;
+			header.packageSize = length;
+			header.packageNo = packageNo;
+			header.offset = offset;
+			header.compressed = compressed;
+			header.checksum = checksum;
+			msg.addMessageElement(new ByteArrayMessageElement(
+					ChunkHeader.ELEMENT_NAME, null,
+					header.encode(headerVersion), null));
+		} else {
+			msg.addMessageElement(new StringMessageElement("Filename",
+					filename, null));
+			msg.addMessageElement(new StringMessageElement("FilePackageSize",
+					String.valueOf(packageCount), null));
+			msg.addMessageElement(new StringMessageElement("PackageSize",
+					String.valueOf(length), null));
+			msg.addMessageElement(new StringMessageElement("PackageNo", String
+					.valueOf(packageNo), null));
+			msg.addMessageElement(new StringMessageElement("Offset", String
+					.valueOf(offset), null));
+			if (compressed)
+				msg.addMessageElement(new StringMessageElement("Encoding",
+						ChunkCompressor.ENCODING, null));
+			if (length > 0)
+				msg.addMessageElement(new StringMessageElement("Checksum",
+						String.valueOf(checksum), null));
+		}
+		msg.addMessageElement(content);
+
+		return msg;
+	}
+
+	/**
+	 * Returns the chunk size controller for a peer, it lives as long as this
+	 * object, so later transfers to the peer start with the learned size.
+	 * 
+	 * @param peername
+	 *            Name of the receiving peer
+	 * @return The controller
+	 */
+	private ChunkSizeController getChunkSizeController(String peername) {
+		synchronized (chunkSizeControllers) {
+			ChunkSizeController controller = chunkSizeControllers
+					.get(peername);
+			if (controller == null) {
+				controller = new ChunkSizeController();
+				chunkSizeControllers.put(peername, controller);
+			}
+			return controller;
+		}
+	}
+
+	/**
+	 * Returns the chunk size currently used for transfers to a peer.
+	 * 
+	 * @param peername
+	 *            Name of the receiving peer
+	 * @return Chunk size in bytes
+	 */
+	public int getChunkSize(String peername) {
+		return getChunkSizeController(peername).getChunkPackages()
+				* PACKAGE_SIZE;
+	}
+
+	/**
+	 * Hashes every package of the file for the offer, the hashes are the
+	 * leaves of the {@link MerkleTree} of the file. The hashes of the last
+	 * {@link #MAX_HASHED_FILES} files are kept by path, modification time and
+	 * size, so a file sent again or offered to a swarm is not hashed again.
+	 * 
+	 * @param file
+	 *            The file to send
+	 * @param reader
+	 *            Reader of the file
+	 * @param packageCount
+	 *            Number of packages of the transfer
+	 * @return Concatenated hashes of all but the end of file package
+	 * @throws IOException
+	 */
+	private byte[] getPackageHashes(File file, MappedFileReader reader,
+			int packageCount) throws IOException {
+		String key = file.getPath() + "/" + file.lastModified() + "/"
+				+ reader.getFileSize();
+		byte[] hashes = packageHashes.get(key);
+		if (hashes != null)
+			return hashes;
+
+		int dataPackages = packageCount - 1;
+
+		hashes = new byte[dataPackages * ChunkStore.HASH_SIZE];
+		for (int i = 0; i < dataPackages; i++) {
+			long offset = (long) i * PACKAGE_SIZE;
+			int length = (int) Math.min(PACKAGE_SIZE, reader.getFileSize()
+					- offset);
+			System.arraycopy(ChunkStore.hash(reader.read(offset, length)), 0,
+					hashes, i * ChunkStore.HASH_SIZE, ChunkStore.HASH_SIZE);
+		}
+
+		packageHashes.put(key, hashes);
+		return hashes;
+	}
+
+	/**
+	 * Offers a transfer to the receiver, which answers with the packages it
+	 * already has.
+	 * 
+	 * @param pipe
+	 *            An output pipe for the message
+	 * @param filename
+	 *            Name of the file on the receiver side
+	 * @param transferId
+	 *            Id of the transfer used in {@link ChunkHeader}s
+	 * @param packageCount
+	 *            Number of packages of the transfer
+	 * @param fileSize
+	 *            Size of the file in bytes
+	 * @param packageHashes
+	 *            Hashes of the packages or null
+	 * @param stream
+	 *            true to offer a stream for the packages
+	 * @throws IOException
+	 */
+	private void sendFileOffer(OutputPipe pipe, String filename,
+			int transferId, int packageCount, long fileSize,
+			byte[] packageHashes, boolean stream) throws IOException {
+		Message msg = createFileOffer(filename, transferId, packageCount,
+				fileSize, packageHashes);
+		if (stream)
+			msg.addMessageElement(new StringMessageElement("Stream", "true",
+					null));
+
+		priorityGate.enter(MessagePriority.CONTROL);
+		try {
+			pipe.send(msg);
+		} finally {
+			priorityGate.exit(MessagePriority.CONTROL);
+		}
+	}
+
+	/**
+	 * Aborts the running transfers to a peer whose pipe is dead, so they fail
+	 * at once instead of after all retransmissions.
+	 * 
+	 * @param peername
+	 *            Name of the receiving peer
+	 */
+	void abortTransfers(String peername) {
+		String prefix = getTransferKey(peername, "");
+
+		synchronized (outgoingTransfers) {
+			for (Map.Entry<String, OutgoingFileTransfer> entry : outgoingTransfers
+					.entrySet()) {
+				if (entry.getKey().startsWith(prefix))
+					entry.getValue().abort();
+			}
+		}
+	}
+
+	/**
+	 * Builds the offer of a transfer.
+	 * 
+	 * @param filename
+	 *            Name of the file on the receiver side
+	 * @param transferId
+	 *            Id of the transfer used in {@link ChunkHeader}s, 0 if the
+	 *            chunks are sent with string elements
+	 * @param packageCount
+	 *            Number of packages of the transfer
+	 * @param fileSize
+	 *            Size of the file in bytes
+	 * @param packageHashes
+	 *            Hashes of the packages, only offered if they fit into
+	 *            {@link #MAX_OFFER_HASHES_SIZE}, but always as
+	 *            {@link MerkleTree} root
+	 * @return The message
+	 */
+	private Message createFileOffer(String filename, int transferId,
+			int packageCount, long fileSize, byte[] packageHashes) {
+		Message msg = createMessage(Jxta.MessageType.FILE_OFFER);
+		msg.addMessageElement(new StringMessageElement("Filename", filename,
+				null));
+		if (transferId != 0)
+			msg.addMessageElement(new StringMessageElement("TransferId",
+					String.valueOf(transferId), null));
+		msg.addMessageElement(new StringMessageElement("FilePackageSize",
+				String.valueOf(packageCount), null));
+		msg.addMessageElement(new StringMessageElement("FileSize", String
+				.valueOf(fileSize), null));
+		if (packageHashes.length <= MAX_OFFER_HASHES_SIZE)
+			msg.addMessageElement(new ByteArrayMessageElement("PackageHashes",
+					null, packageHashes, null));
+		msg.addMessageElement(new ByteArrayMessageElement("MerkleRoot", null,
+				MerkleTree.root(packageHashes), null));
+
+		return msg;
+	}
+
+	/**
+	 * Handles the acknowledgement of a package sent by
+	 * {@link #sendFile(OutputPipe, String)} or the answer to an offer.
 	 * 
-	 * @param jxtaService
-	 *            {@link jxtaapp.service.Jxta} object
 	 * @param msg
-	 *            The received message
+	 *            The received acknowledgement message
 	 */
-	public void receiveFilePackage(final Jxta jxtaService, Message msg) {
-		String from = msg.getMessageElement("From").toString();
-		final String fromName = msg.getMessageElement("FromName").toString();
+	public void receiveFileAck(Message msg) {
+		String fromName = msg.getMessageElement("FromName").toString();
+		String filename = msg.getMessageElement("Filename").toString();
+
+		OutgoingFileTransfer transfer = outgoingTransfers.get(getTransferKey(
+				fromName, filename));
+		if (transfer == null)
+			return;
+
+		if (msg.getMessageElement("Received") != null) {
+			if (msg.getMessageElement(ChunkHeader.ELEMENT_NAME) != null)
+				transfer.setChunkHeaderVersion(Math.min(ChunkHeader.VERSION,
+						Integer.valueOf(
+								msg.getMessageElement(ChunkHeader.ELEMENT_NAME)
+										.toString()).intValue()));
+			if (msg.getMessageElement("Stream") != null)
+				transfer.setStreamPeerId(msg.getMessageElement("From")
+						.toString());
+			transfer.acknowledge(msg.getMessageElement("Received").getBytes(
+					false));
+		} else if (msg.getMessageElement("SlowDown") != null) {
+			Log.d(JxtaApp.TAG, "FILE: chunk "
+					+ msg.getMessageElement("PackageNo") + " of " + filename
+					+ " dropped by " + fromName + ", slow down");
+			transfer.slowDown(Integer.valueOf(
+					msg.getMessageElement("PackageNo").toString()).intValue(),
+					transfer.getChunkSizeController().getRetransmissionTimeout(
+							ACK_TIMEOUT));
+		} else if (msg.getMessageElement("Resend") != null) {
+			Log.d(JxtaApp.TAG, "FILE: chunk "
+					+ msg.getMessageElement("PackageNo") + " of " + filename
+					+ " damaged, send again");
+			transfer.resend(Integer.valueOf(
+					msg.getMessageElement("PackageNo").toString()).intValue());
+		} else {
+			transfer.acknowledge(Integer.valueOf(
+					msg.getMessageElement("PackageNo").toString()).intValue());
+		}
+	}
 
-		final String filename = msg.getMessageElement("Filename").toString();
+	/**
+	 * Handles the offer of a file transfer. The file is opened for receiving
+	 * and the sender gets the packages which are already here from an
+	 * interrupted attempt or from the {@link ChunkStore}.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object for the pipe to the
+	 *            sender
+	 * @param msg
+	 *            The received offer message
+	 */
+	public void receiveFileOffer(Jxta jxtaService, Message msg) {
+		String fromName = msg.getMessageElement("FromName").toString();
+		String filename = msg.getMessageElement("Filename").toString();
 		int filePackageSize = Integer.valueOf(
 				msg.getMessageElement("FilePackageSize").toString()).intValue();
-		int packageSize = Integer.valueOf(
-				msg.getMessageElement("PackageSize").toString()).intValue();
+		long fileSize = Long.valueOf(
+				msg.getMessageElement("FileSize").toString()).longValue();
+
+		byte[] packageHashes = null;
+		if (msg.getMessageElement("PackageHashes") != null)
+			packageHashes = msg.getMessageElement("PackageHashes").getBytes(
+					false);
+		byte[] merkleRoot = null;
+		if (msg.getMessageElement("MerkleRoot") != null)
+			merkleRoot = msg.getMessageElement("MerkleRoot").getBytes(false);
+
+		if (msg.getMessageElement(SWARM) != null) {
+			SwarmDownload swarm = swarmDownloads.get(filename);
+			if (swarm != null
+					&& !swarm.offered(fromName, filePackageSize, fileSize,
+							packageHashes, merkleRoot))
+				Log.d(JxtaApp.TAG, "FILE: " + fromName
+						+ " offers another file " + filename);
+			return;
+		}
+
+		// later chunks of the transfer may only carry its id
+		boolean chunkHeaders = msg.getMessageElement("TransferId") != null;
+		if (chunkHeaders)
+			transferIds.put(getTransferKey(fromName, msg.getMessageElement(
+					"TransferId").toString()), filename);
+
+		byte[] received;
+		try {
+			IncomingFileTransfer transfer = getIncomingTransfer(fromName,
+					filename, filePackageSize, fileSize);
+			if (merkleRoot != null)
+				transfer.setMerkleRoot(merkleRoot);
+			if (packageHashes != null) {
+				transfer.setPackageHashes(packageHashes);
+				copyStoredPackages(transfer, packageHashes);
+			}
+			received = transfer.getReceived();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		Message answer = createMessage(Jxta.MessageType.FILE_ACK);
+		answer.addMessageElement(new StringMessageElement("Filename",
+				filename, null));
+		answer.addMessageElement(new ByteArrayMessageElement("Received", null,
+				received, null));
+		if (chunkHeaders)
+			answer.addMessageElement(new StringMessageElement(
+					ChunkHeader.ELEMENT_NAME, String
+							.valueOf(ChunkHeader.VERSION), null));
+		if (msg.getMessageElement("Stream") != null && streamTransport != null)
+			answer.addMessageElement(new StringMessageElement("Stream",
+					"true", null));
+
+		sendToPeer(jxtaService, fromName, answer);
+	}
+
+	/**
+	 * Downloads a file from all given peers which share it, different ranges
+	 * of the file are requested from different peers in parallel (see
+	 * {@link SwarmDownload}). Blocks until the file is complete.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object for the pipes to the
+	 *            peers
+	 * @param filename
+	 *            Name of the file
+	 * @param peernames
+	 *            Names of the peers to ask for the file
+	 * @return true if the file was downloaded completely
+	 */
+	public boolean downloadFile(Jxta jxtaService, String filename,
+			List<String> peernames) {
+		SwarmDownload swarm = new SwarmDownload(filename);
+		String transferKey = getTransferKey(SWARM_PEER, filename);
+
+		swarmDownloads.put(filename, swarm);
+		try {
+			for (String peername : peernames)
+				sendFileRequest(jxtaService, peername, filename, 0, 0);
+
+			if (!swarm.waitForSources(ACK_TIMEOUT)) {
+				Log.d(JxtaApp.TAG, "FILE: no peer shares " + filename);
+				return false;
+			}
+
+			IncomingFileTransfer transfer = getIncomingTransfer(SWARM_PEER,
+					filename, swarm.getPackageCount(), swarm.getFileSize());
+			if (swarm.getMerkleRoot() != null)
+				transfer.setMerkleRoot(swarm.getMerkleRoot());
+			if (swarm.getPackageHashes() != null) {
+				transfer.setPackageHashes(swarm.getPackageHashes());
+				copyStoredPackages(transfer, swarm.getPackageHashes());
+			}
+			swarm.planRanges(transfer);
+
+			while (!swarm.isDone()) {
+				SwarmDownload.Request request;
+				while ((request = swarm.nextRequest()) != null) {
+					pace(request.peername, (long) request.packages
+							* PACKAGE_SIZE);
+					sendFileRequest(jxtaService, request.peername, filename,
+							request.packageNo, request.packages);
+				}
+
+				swarm.waitForProgress(ACK_TIMEOUT);
+
+				if (!swarm.expire(ACK_TIMEOUT, MAX_RETRANSMISSIONS)) {
+					Log.d(JxtaApp.TAG, "FILE: no peer left for " + filename);
+					return false;
+				}
+			}
+
+			// the end of file package is not requested, it has no content
+			transfer = getIncomingTransfer(SWARM_PEER, filename, swarm
+					.getPackageCount(), swarm.getFileSize());
+			transfer.write(swarm.getPackageCount(), 1, swarm.getFileSize(),
+					new byte[0], -1);
+			finishIncomingTransfer(jxtaService, transferKey, swarm
+					.getSources().get(0), filename);
+
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			swarmDownloads.remove(filename);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Waits for the {@link TransferScheduler} (if any) to allow the next chunk
+	 * of the calling transfer.
+	 * 
+	 * @param peername
+	 *            Name of the peer the chunk is sent to or requested from
+	 * @param bytes
+	 *            Size of the chunk
+	 * @throws InterruptedException
+	 */
+	private void pace(String peername, long bytes) throws InterruptedException {
+		TransferScheduler scheduler = transferScheduler;
+		if (scheduler != null)
+			scheduler.acquire(peername, bytes);
+	}
+
+	/**
+	 * Requests a file (packageNo 0) or a range of its packages from a peer.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object for the pipe to the peer
+	 * @param peername
+	 *            Name of the peer
+	 * @param filename
+	 *            Name of the file
+	 * @param packageNo
+	 *            First package of the range or 0 for the offer of the file
+	 * @param packages
+	 *            Number of packages of the range
+	 */
+	private void sendFileRequest(Jxta jxtaService, String peername,
+			String filename, int packageNo, int packages) {
+		Message msg = createMessage(Jxta.MessageType.FILE_REQUEST);
+		msg.addMessageElement(new StringMessageElement("Filename", filename,
+				null));
+		msg.addMessageElement(new StringMessageElement("PackageNo", String
+				.valueOf(packageNo), null));
+		msg.addMessageElement(new StringMessageElement("PackageCount", String
+				.valueOf(packages), null));
+
+		sendToPeer(jxtaService, peername, msg);
+	}
+
+	/**
+	 * Handles the request of another peer for a shared file: answers with an
+	 * offer for packageNo 0 and with one chunk of the range otherwise.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object for the pipe to the
+	 *            requesting peer
+	 * @param msg
+	 *            The received request message
+	 */
+	public void receiveFileRequest(Jxta jxtaService, Message msg) {
+		String fromName = msg.getMessageElement("FromName").toString();
+		String filename = msg.getMessageElement("Filename").toString();
 		int packageNo = Integer.valueOf(
 				msg.getMessageElement("PackageNo").toString()).intValue();
-		byte[] content = msg.getMessageElement("Content").getBytes(true);
+		int packages = Integer.valueOf(
+				msg.getMessageElement("PackageCount").toString()).intValue();
 
-		// System.out.println("receive content (" + packageSize + "; "
-		// + packageNo + "): " + new String(content));
+		File file = getSharedFile(filename);
+		if (file == null) {
+			Log.d(JxtaApp.TAG, "FILE: " + fromName + " requests unknown file "
+					+ filename);
+			return;
+		}
 
-		RandomAccessFile raf;
 		try {
-			raf = new RandomAccessFile(DIRECTORY_FOR_RECEIVED + "/received_"
-					+ filename, "rw");
-			if (packageSize != -1) {
-				raf.seek((packageNo - 1) * PACKAGE_SIZE);
-				raf.write(content, 0, packageSize);
+			MappedFileReader reader = getServedFile(file);
+			int packageCount = (int) ((reader.getFileSize() + PACKAGE_SIZE - 1) / PACKAGE_SIZE) + 1;
+			Message answer;
+
+			if (packageNo == 0) {
+				answer = createFileOffer(filename, 0, packageCount, reader
+						.getFileSize(), getPackageHashes(file, reader,
+						packageCount));
 			} else {
-				System.out.println("FILE: seems last package");
-				// raf.close();
+				if (packageNo < 1 || packages < 1
+						|| packages > ChunkSizeController.MAX_PACKAGES
+						|| packageNo + packages > packageCount)
+					return;
+				answer = createChunkMessage(reader, filename, 0, 0, packageCount,
+						packageNo, packages, null);
 			}
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
+
+			answer.addMessageElement(new StringMessageElement(SWARM, "true",
+					null));
+			sendToPeer(jxtaService, fromName, answer);
+		} catch (IOException e) {
 			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns a file this peer shares: a file it sent before or received
+	 * completely.
+	 * 
+	 * @param filename
+	 *            Name of the file
+	 * @return The file or null
+	 */
+	private File getSharedFile(String filename) {
+		File file = sharedFiles.get(filename);
+		if (file != null && file.exists())
+			return file;
+
+		if (!DirectoryPacker.isSafePath(filename))
+			return null;
+
+		file = getReceivedFile(filename);
+		File manifest = new File(file.getPath()
+				+ IncomingFileTransfer.MANIFEST_SUFFIX);
+		if (file.exists() && !manifest.exists())
+			return file;
+
+		return null;
+	}
+
+	/**
+	 * @param filename
+	 *            Name of a received file, may contain a relative path
+	 * @return The file in {@link #DIRECTORY_FOR_RECEIVED}
+	 */
+	private File getReceivedFile(String filename) {
+		return new File(DIRECTORY_FOR_RECEIVED + "/received_" + filename);
+	}
+
+	/**
+	 * Returns the open reader of a shared file, at most
+	 * {@link #MAX_SERVED_FILES} are held open.
+	 * 
+	 * @param file
+	 *            The shared file
+	 * @return The reader
+	 * @throws IOException
+	 */
+	private MappedFileReader getServedFile(File file) throws IOException {
+		synchronized (servedFiles) {
+			MappedFileReader reader = servedFiles.get(file.getPath());
+			if (reader == null || reader.getFileSize() != file.length()) {
+				if (reader != null)
+					reader.close();
+				reader = new MappedFileReader(file);
+				servedFiles.put(file.getPath(), reader);
+			}
+			return reader;
+		}
+	}
+
+	/**
+	 * Copies all packages of an incoming transfer which are found in the
+	 * {@link ChunkStore} into the file.
+	 * 
+	 * @param transfer
+	 *            The incoming transfer
+	 * @param packageHashes
+	 *            Hashes of the packages as offered by the sender
+	 * @throws IOException
+	 */
+	private void copyStoredPackages(IncomingFileTransfer transfer,
+			byte[] packageHashes) throws IOException {
+		int copied = 0;
+
+		for (int i = 0; i < packageHashes.length / ChunkStore.HASH_SIZE; i++) {
+			if (transfer.isReceived(i + 1))
+				continue;
+
+			byte[] content = chunkStore.read(packageHashes, i
+					* ChunkStore.HASH_SIZE);
+			// hashed like an arrived package, so it is not read again
+			if (content != null
+					&& transfer.verify(i + 1, 1, content, content.length)) {
+				transfer.write(i + 1, 1, (long) i * PACKAGE_SIZE, content,
+						content.length);
+				copied++;
+			}
+		}
+
+		if (copied > 0)
+			Log.d(JxtaApp.TAG, "FILE: " + copied + " packages of "
+					+ transfer.getFile().getName() + " already stored");
+	}
+
+	/**
+	 * Acknowledges a received package to its sender. The acknowledgement is
+	 * sent at once over an established pipe; without one it is sent by the
+	 * send pool of {@link Jxta}, so the thread writing the received chunks
+	 * does not wait for the pipe setup and stall the other transfers.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object for the pipe to the
+	 *            sender
+	 * @param fromName
+	 *            Name of the sending peer
+	 * @param filename
+	 *            Name of the file
+	 * @param packageNo
+	 *            Number of the received package
+	 */
+	private void sendFileAck(final Jxta jxtaService, final String fromName,
+			String filename, int packageNo) {
+		final Message msg = createMessage(Jxta.MessageType.FILE_ACK);
+		msg.addMessageElement(new StringMessageElement("Filename", filename,
+				null));
+		msg.addMessageElement(new StringMessageElement("PackageNo", String
+				.valueOf(packageNo), null));
+
+		OutputPipe pipe = jxtaService.getPipePool().get(fromName);
+		if (pipe != null) {
+			sendToPipe(pipe, msg);
+			return;
+		}
+
+		jxtaService.executeSend(new Runnable() {
+			public void run() {
+				sendToPeer(jxtaService, fromName, msg);
+			}
+		});
+	}
+
+	/**
+	 * Creates a message with the elements "Type", "From" and "FromName".
+	 * 
+	 * @param type
+	 *            Type of the message
+	 * @return The message
+	 */
+	private Message createMessage(Jxta.MessageType type) {
+		Message msg = new Message();
+		msg.addMessageElement(new StringMessageElement("Type", type.toString(),
+				null));
+		msg.addMessageElement(new StringMessageElement("From", peerId, null));
+		msg.addMessageElement(new StringMessageElement("FromName",
+				instanceName, null));
+		return msg;
+	}
+
+	/**
+	 * Sends a control message (e.g. an acknowledgement) back to a peer. Chunks
+	 * sent this way (answers to swarm requests) are bulk data.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object for the pipe to the peer
+	 * @param peername
+	 *            Name of the peer
+	 * @param msg
+	 *            The message
+	 */
+	private void sendToPeer(Jxta jxtaService, String peername, Message msg) {
+		OutputPipe pipe = jxtaService.getPipeToPeer(peername);
+		if (pipe == null) {
+			Log.d(JxtaApp.TAG, "FILE: cannot send "
+					+ msg.getMessageElement("Type") + " to " + peername);
+			return;
+		}
+
+		sendToPipe(pipe, msg);
+	}
+
+	/**
+	 * Sends a message over a pipe, after the messages of higher priority (see
+	 * {@link PriorityGate}).
+	 * 
+	 * @param pipe
+	 *            Pipe to the peer
+	 * @param msg
+	 *            The message
+	 */
+	private void sendToPipe(OutputPipe pipe, Message msg) {
+		MessagePriority priority = Jxta.MessageType.valueOf(
+				msg.getMessageElement("Type").toString()).getPriority();
+		priorityGate.enter(priority);
+		try {
+			pipe.send(msg);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} finally {
+			priorityGate.exit(priority);
+		}
+	}
+
+	/**
+	 * Returns the open writer of an incoming transfer or opens the file if the
+	 * transfer is new or its writer was closed in the meantime.
+	 * 
+	 * @param peername
+	 *            Name of the sending peer, {@link #SWARM_PEER} for a swarm
+	 *            download
+	 * @param filename
+	 *            Name of the file
+	 * @param filePackageSize
+	 *            Number of packages of the transfer
+	 * @param fileSize
+	 *            Size of the file if known, otherwise -1
+	 * @return The writer
+	 * @throws IOException
+	 */
+	private IncomingFileTransfer getIncomingTransfer(String peername,
+			String filename, int filePackageSize, long fileSize)
+			throws IOException {
+		String transferKey = getTransferKey(peername, filename);
+
+		synchronized (incomingTransfers) {
+			IncomingFileTransfer transfer = incomingTransfers.get(transferKey);
+
+			if (transfer == null) {
+				long preallocateSize = 0;
+				if (PREALLOCATE_RECEIVED_FILES)
+					preallocateSize = fileSize != -1 ? fileSize
+							: (long) (filePackageSize - 1) * PACKAGE_SIZE;
+
+				if (!DirectoryPacker.isSafePath(filename))
+					throw new IOException("Invalid file name " + filename);
+
+				File file = getReceivedFile(filename);
+				file.getParentFile().mkdirs();
+				transfer = new IncomingFileTransfer(file, filePackageSize,
+						PACKAGE_SIZE, fileSize, preallocateSize);
+				transfer.setStats(transferMonitor.start(false, peername
+						.equals(SWARM_PEER) ? SWARM : peername, filename,
+						fileSize != -1 ? fileSize
+								: (long) (filePackageSize - 1) * PACKAGE_SIZE));
+				incomingTransfers.put(transferKey, transfer);
+			}
+
+			return transfer;
+		}
+	}
+
+	/**
+	 * Closes and forgets the writer of an incoming transfer.
+	 * 
+	 * @param transferKey
+	 *            Key of the transfer in {@link #incomingTransfers}
+	 * @return The closed writer or null
+	 */
+	private IncomingFileTransfer closeIncomingTransfer(String transferKey) {
+		IncomingFileTransfer transfer;
+
+		synchronized (incomingTransfers) {
+			transfer = incomingTransfers.remove(transferKey);
 		}
 
-		Log.d(JxtaApp.TAG, "FILE-PACKAGE (" + packageNo + "/" + filePackageSize
-				+ ") FROM " + new String(fromName) + " ("
-				+ new SimpleDateFormat("dd.MM.yy HH:mm:ss").format(new Date())
-				+ "): " + new String(filename) + " (PeerID: "
-				+ new String(from) + ")");
+		if (transfer != null)
+			transfer.close();
 
+		return transfer;
+	}
+
+	/**
+	 * Closes the files of all incoming transfers without a package for
+	 * {@link #WRITER_IDLE_TIMEOUT}. The transfer continues with a reopened file
+	 * if another package arrives.
+	 */
+	private void closeIdleIncomingTransfers() {
+		synchronized (incomingTransfers) {
+			Iterator<Map.Entry<String, IncomingFileTransfer>> it = incomingTransfers
+					.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, IncomingFileTransfer> entry = it.next();
+				if (entry.getValue().getIdleTime() >= WRITER_IDLE_TIMEOUT) {
+					Log.d(JxtaApp.TAG, "FILE: close idle file "
+							+ entry.getKey());
+					entry.getValue().close();
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param peername
+	 *            Name of the other peer of the transfer, {@link #SWARM_PEER}
+	 *            for a swarm download
+	 * @param filename
+	 * @return Key of a transfer in {@link #outgoingTransfers} or
+	 *         {@link #incomingTransfers}. The separator is a NUL character,
+	 *         which no peer name contains, so peer and file name cannot run
+	 *         into each other and no peer shares keys with the swarm.
+	 */
+	private String getTransferKey(String peername, String filename) {
+		return peername + "\0" + filename;
+	}
+
+	/**
+	 * Handles all receiving file messages (respectively the parts): queues
+	 * them in the {@link ReceiveQueue}, whose writer threads extract the parts
+	 * and combine them to the full file
+	 * ({@link #receiveFilePackages(Jxta, List)}), so the pipe listener thread
+	 * does no disk I/O. If the queue is full, the overflow policy of
+	 * {@link MessagePriority#BULK} applies; a dropped chunk is answered with a
+	 * "SlowDown" acknowledgement.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object
+	 * @param msg
+	 *            The received message
+	 */
+	public void receiveFilePackage(Jxta jxtaService, Message msg) {
+		if (!receiveQueue.enqueue(jxtaService, msg, msg.getMessageElement(
+				"FromName").toString(), jxtaService.getMessageDispatcher()
+				.getOverflowPolicy(MessagePriority.BULK)))
+			slowDownSender(jxtaService, msg);
+	}
+
+	/**
+	 * Asks the sender of a dropped chunk to slow down. Chunks of a swarm
+	 * download are requested again after a timeout anyway.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object for the pipe to the
+	 *            sender
+	 * @param msg
+	 *            The dropped chunk message
+	 */
+	private void slowDownSender(Jxta jxtaService, Message msg) {
+		if (msg.getMessageElement(SWARM) != null)
+			return;
+
+		String fromName = msg.getMessageElement("FromName").toString();
+		String filename;
+		int packageNo;
+
+		MessageElement headerElement = msg
+				.getMessageElement(ChunkHeader.ELEMENT_NAME);
+		if (headerElement != null) {
+			ChunkHeader header = new ChunkHeader();
+			try {
+				header.decode(headerElement.getBytes(false));
+			} catch (IOException e) {
+				return;
+			}
+			filename = transferIds.get(getTransferKey(fromName, String
+					.valueOf(header.transferId)));
+			packageNo = header.packageNo;
+		} else {
+			filename = msg.getMessageElement("Filename").toString();
+			packageNo = Integer.valueOf(
+					msg.getMessageElement("PackageNo").toString()).intValue();
+		}
+		if (filename == null)
+			return;
+
+		Message answer = createMessage(Jxta.MessageType.FILE_ACK);
+		answer.addMessageElement(new StringMessageElement("Filename",
+				filename, null));
+		answer.addMessageElement(new StringMessageElement("PackageNo", String
+				.valueOf(packageNo), null));
+		answer.addMessageElement(new StringMessageElement("SlowDown", "true",
+				null));
+
+		sendToPeer(jxtaService, fromName, answer);
+	}
+
+	/**
+	 * Registers the handlers for the file messages. Chunks are handled on the
+	 * pipe listener thread because {@link #receiveFilePackage(Jxta, Message)}
+	 * only queues them; offers and requests read files and set up pipes, so
+	 * they get two worker threads each.
+	 * 
+	 * @param dispatcher
+	 *            The dispatcher of the received messages
+	 */
+	public void registerHandlers(MessageDispatcher dispatcher) {
+		dispatcher.register(Jxta.MessageType.FILE.toString(),
+				new MessageHandler() {
+					public void handleMessage(Jxta jxtaService, Message msg) {
+						receiveFilePackage(jxtaService, msg);
+					}
+				}, Jxta.MessageType.FILE.getPriority(), 0, 0);
+		dispatcher.register(Jxta.MessageType.FILE_ACK.toString(),
+				new MessageHandler() {
+					public void handleMessage(Jxta jxtaService, Message msg) {
+						receiveFileAck(msg);
+					}
+				}, Jxta.MessageType.FILE_ACK.getPriority(), 1, 256);
+		dispatcher.register(Jxta.MessageType.FILE_OFFER.toString(),
+				new MessageHandler() {
+					public void handleMessage(Jxta jxtaService, Message msg) {
+						receiveFileOffer(jxtaService, msg);
+					}
+				}, Jxta.MessageType.FILE_OFFER.getPriority(), 2, 32);
+		dispatcher.register(Jxta.MessageType.FILE_REQUEST.toString(),
+				new MessageHandler() {
+					public void handleMessage(Jxta jxtaService, Message msg) {
+						receiveFileRequest(jxtaService, msg);
+					}
+				}, Jxta.MessageType.FILE_REQUEST.getPriority(), 2, 64);
+	}
+
+	/**
+	 * @return Statistics of the running and recently finished transfers
+	 */
+	public TransferMonitor getTransferMonitor() {
+		return transferMonitor;
+	}
+
+	/**
+	 * @return The queue of received chunks with its metrics
+	 */
+	public ReceiveQueue getReceiveQueue() {
+		return receiveQueue;
+	}
+
+	/**
+	 * Writes a batch of received chunks, called by a writer thread of the
+	 * {@link ReceiveQueue}. It stores all parts directly in the predefined
+	 * directory {@link #DIRECTORY_FOR_RECEIVED}. Consecutive chunks of the
+	 * same file are merged into one write. The file stays open between the
+	 * parts, at most {@link #MAX_OPEN_FILES} files are held open and a file is
+	 * closed after its last part or after {@link #WRITER_IDLE_TIMEOUT} without
+	 * a part.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object
+	 * @param messages
+	 *            The received chunk messages in the order of arrival
+	 */
+	void receiveFilePackages(Jxta jxtaService, List<Message> messages) {
+		List<ReceivedChunk> chunks = new ArrayList<ReceivedChunk>(messages
+				.size());
+		for (Message msg : messages) {
+			ReceivedChunk chunk = readChunk(jxtaService, msg);
+			if (chunk != null)
+				chunks.add(chunk);
+		}
+
+		int start = 0;
+		while (start < chunks.size()) {
+			int end = start + 1;
+			while (end < chunks.size()
+					&& chunks.get(end).follows(chunks.get(end - 1)))
+				end++;
+
+			writeChunks(jxtaService, chunks.subList(start, end));
+			start = end;
+		}
+	}
+
+	/**
+	 * Receives the packages of an offered file over a stream (see
+	 * {@link #sendStream(String, MappedFileReader, String, OutgoingFileTransfer)}),
+	 * called by a receive thread of the {@link StreamTransport}. Every chunk
+	 * is checked against the offered hashes and written at once; at the end
+	 * the sender gets the bitmap of the received packages. A stream for a
+	 * transfer which was not offered is refused.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object
+	 * @param socket
+	 *            The accepted stream, closed afterwards
+	 */
+	void receiveStream(Jxta jxtaService, Socket socket) {
+		String fromName = null;
+
+		try {
+			socket.setSoTimeout(STREAM_TIMEOUT);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream(), STREAM_BUFFER_SIZE));
+			fromName = in.readUTF();
+			String filename = in.readUTF();
+			int packageCount = in.readInt();
+			long fileSize = in.readLong();
+			String transferKey = getTransferKey(fromName, filename);
+
+			synchronized (incomingTransfers) {
+				if (!incomingTransfers.containsKey(transferKey))
+					throw new IOException("No offer of " + filename);
+			}
+
+			byte[] content = new byte[STREAM_CHUNK_PACKAGES * PACKAGE_SIZE];
+			IncomingFileTransfer transfer;
+			while (true) {
+				int packageNo = in.readInt();
+				int length = in.readInt();
+				if (packageNo < 1 || packageNo > packageCount)
+					throw new IOException("Invalid package " + packageNo);
+				// reopens the file if it was closed meanwhile
+				transfer = getIncomingTransfer(fromName, filename,
+						packageCount, fileSize);
+				if (length < 0) {
+					transfer.write(packageNo, 1, fileSize, new byte[0], -1);
+					break;
+				}
+				if (length == 0 || length > content.length)
+					throw new IOException("Invalid chunk of " + length
+							+ " bytes");
+
+				in.readFully(content, 0, length);
+				int packages = (length + PACKAGE_SIZE - 1) / PACKAGE_SIZE;
+				if (!transfer.verify(packageNo, packages, content, length)) {
+					Log.d(JxtaApp.TAG, "FILE: chunk " + packageNo + " of "
+							+ filename + " from " + fromName
+							+ " is damaged");
+					continue;
+				}
+
+				transfer.write(packageNo, packages, (long) (packageNo - 1)
+						* PACKAGE_SIZE, content, length);
+				if (transfer.getStats() != null)
+					transfer.getStats().addChunk();
+			}
+
+			byte[] received = transfer.getReceived();
+			DataOutputStream out = new DataOutputStream(socket
+					.getOutputStream());
+			out.writeInt(received.length);
+			out.write(received);
+			out.flush();
+
+			if (transfer.isComplete())
+				finishIncomingTransfer(jxtaService, transferKey, fromName,
+						filename);
+		} catch (IOException e) {
+			Log.d(JxtaApp.TAG, "FILE: stream from " + fromName + " failed: "
+					+ e.getMessage());
+		} finally {
+			StreamTransport.close(socket);
+		}
+	}
+
+	/**
+	 * A received chunk which passed all checks and waits to be written.
+	 */
+	private static class ReceivedChunk {
+		private String from;
+		private String fromName;
+		private String filename;
+		private String transferKey;
+		private IncomingFileTransfer transfer;
+		private SwarmDownload swarm;
+		private int filePackageSize;
+		private int packageSize;
+		private int packageNo;
+		private int packages;
+		private long offset;
+		private byte[] content;
+
+		/**
+		 * @param previous
+		 *            The chunk received before
+		 * @return true if this chunk continues the previous one in the file
+		 */
+		private boolean follows(ReceivedChunk previous) {
+			return transfer == previous.transfer && packageSize > 0
+					&& previous.packageSize > 0
+					&& packageNo == previous.packageNo + previous.packages
+					&& offset == previous.offset + previous.packageSize;
+		}
+	}
+
+	/**
+	 * Reads the header of a chunk message, decompresses the content and checks
+	 * it against its checksum and the offered hashes.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object
+	 * @param msg
+	 *            The received message
+	 * @return The chunk or null if it is dropped
+	 */
+	private ReceivedChunk readChunk(Jxta jxtaService, Message msg) {
+		ReceivedChunk chunk = new ReceivedChunk();
+		chunk.from = msg.getMessageElement("From").toString();
+		chunk.fromName = msg.getMessageElement("FromName").toString();
+		String fromName = chunk.fromName;
+
+		String encoding = null;
+		boolean hasChecksum;
+		int checksum = 0;
+
+		MessageElement headerElement = msg
+				.getMessageElement(ChunkHeader.ELEMENT_NAME);
+		if (headerElement != null) {
+			ChunkHeader header = new ChunkHeader();
+			try {
+				header.decode(headerElement.getBytes(false));
+			} catch (IOException e) {
+				Log.d(JxtaApp.TAG, "FILE: " + e.getMessage() + " from "
+						+ fromName);
+				return null;
+			}
+
+			chunk.filename = transferIds.get(getTransferKey(fromName, String
+					.valueOf(header.transferId)));
+			if (chunk.filename == null) {
+				Log.d(JxtaApp.TAG, "FILE: unknown transfer "
+						+ header.transferId + " from " + fromName);
+				return null;
+			}
+			chunk.filePackageSize = header.filePackageSize;
+			chunk.packageSize = header.packageSize;
+			chunk.packageNo = header.packageNo;
+			chunk.offset = header.offset;
+			if (header.compressed)
+				encoding = ChunkCompressor.ENCODING;
+			hasChecksum = header.hasChecksum;
+			checksum = header.checksum;
+		} else if (msg.getMessageElement("Offset") == null) {
+			// peers from before the 32 KB packages, their package numbers
+			// mean other positions in the file
+			Log.d(JxtaApp.TAG, "FILE: chunk without offset from " + fromName
+					+ ", the peer is too old");
+			return null;
+		} else {
+			try {
+				chunk.filename = msg.getMessageElement("Filename").toString();
+				chunk.filePackageSize = Integer.valueOf(
+						msg.getMessageElement("FilePackageSize").toString())
+						.intValue();
+				chunk.packageSize = Integer.valueOf(
+						msg.getMessageElement("PackageSize").toString())
+						.intValue();
+				chunk.packageNo = Integer.valueOf(
+						msg.getMessageElement("PackageNo").toString())
+						.intValue();
+				chunk.offset = Long.valueOf(
+						msg.getMessageElement("Offset").toString()).longValue();
+				if (msg.getMessageElement("Encoding") != null)
+					encoding = msg.getMessageElement("Encoding").toString();
+				hasChecksum = msg.getMessageElement("Checksum") != null;
+				if (hasChecksum)
+					checksum = Integer.valueOf(
+							msg.getMessageElement("Checksum").toString())
+							.intValue();
+			} catch (RuntimeException e) {
+				// missing element or no number
+				Log.d(JxtaApp.TAG, "FILE: malformed chunk from " + fromName
+						+ ": " + e);
+				return null;
+			}
+		}
+
+		MessageElement contentElement = msg.getMessageElement("Content");
+		if (contentElement == null) {
+			Log.d(JxtaApp.TAG, "FILE: chunk without content from "
+					+ fromName);
+			return null;
+		}
+		chunk.content = contentElement.getBytes(false);
+		chunk.packages = Math.max(1, (chunk.packageSize + PACKAGE_SIZE - 1)
+				/ PACKAGE_SIZE);
+
+		// the size is bounded before the content is decompressed into it,
+		// -1 marks the end of file package
+		if (chunk.packageSize < -1 || chunk.packageSize > MAX_CHUNK_SIZE) {
+			Log.d(JxtaApp.TAG, "FILE: chunk " + chunk.packageNo + " of "
+					+ chunk.filename + " from " + fromName + " has size "
+					+ chunk.packageSize);
+			return null;
+		}
+
+		// the position follows from the package number, a chunk must not
+		// write anywhere else
+		if (chunk.packageNo < 1
+				|| chunk.packageNo + chunk.packages - 1 > chunk.filePackageSize
+				|| (chunk.packageSize > 0 && chunk.offset != (long) (chunk
+						.packageNo - 1)
+						* PACKAGE_SIZE)) {
+			Log.d(JxtaApp.TAG, "FILE: chunk " + chunk.packageNo + " of "
+					+ chunk.filename + " from " + fromName + " out of range");
+			return null;
+		}
+
+		if (msg.getMessageElement(SWARM) != null) {
+			chunk.swarm = swarmDownloads.get(chunk.filename);
+			if (chunk.swarm == null)
+				return null;
+		}
+
+		chunk.transferKey = getTransferKey(chunk.swarm != null ? SWARM_PEER
+				: fromName, chunk.filename);
+
+		if (encoding != null) {
+			try {
+				if (!encoding.equals(ChunkCompressor.ENCODING))
+					throw new IOException("Unknown encoding " + encoding);
+				chunk.content = ChunkCompressor.decompress(chunk.content,
+						chunk.packageSize, MAX_CHUNK_SIZE);
+			} catch (IOException e) {
+				// not acknowledged, so the sender retransmits the chunk
+				Log.d(JxtaApp.TAG, "FILE: " + e.getMessage());
+				return null;
+			}
+		}
+
+		if (chunk.content.length < chunk.packageSize) {
+			Log.d(JxtaApp.TAG, "FILE: chunk " + chunk.packageNo + " of "
+					+ chunk.filename + " from " + fromName + " is too short");
+			return null;
+		}
+
+		if (hasChecksum
+				&& chunk.packageSize > 0
+				&& ChunkChecksum.compute(chunk.content, chunk.packageSize) != checksum) {
+			rejectChunk(jxtaService, chunk.swarm, fromName, chunk.filename,
+					chunk.packageNo);
+			return null;
+		}
+
+		try {
+			chunk.transfer = getIncomingTransfer(
+					chunk.swarm != null ? SWARM_PEER : fromName,
+					chunk.filename, chunk.filePackageSize, -1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+
+		if (chunk.packageSize == -1)
+			Log.d(JxtaApp.TAG, "FILE: seems last package");
+
+		if (!chunk.transfer.verify(chunk.packageNo, chunk.packages,
+				chunk.content, chunk.packageSize)) {
+			rejectChunk(jxtaService, chunk.swarm, fromName, chunk.filename,
+					chunk.packageNo);
+			return null;
+		}
+
+		return chunk;
+	}
+
+	/**
+	 * Writes consecutive chunks of one file with one gathering write and
+	 * acknowledges every chunk.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object
+	 * @param chunks
+	 *            The chunks, each following the one before
+	 */
+	private void writeChunks(Jxta jxtaService, List<ReceivedChunk> chunks) {
+		ReceivedChunk first = chunks.get(0);
+		ReceivedChunk last = chunks.get(chunks.size() - 1);
+		boolean complete = false;
+
+		try {
+			ByteBuffer[] parts = new ByteBuffer[chunks.size()];
+			for (int i = 0; i < parts.length; i++) {
+				ReceivedChunk chunk = chunks.get(i);
+				parts[i] = ByteBuffer.wrap(chunk.content, 0, Math.max(0,
+						chunk.packageSize));
+			}
+
+			first.transfer.write(first.packageNo, last.packageNo
+					+ last.packages - first.packageNo, first.offset, parts);
+			complete = first.transfer.isComplete();
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeIncomingTransfer(first.transferKey);
+			return;
+		}
+
+		for (ReceivedChunk chunk : chunks) {
+			if (chunk.transfer.getStats() != null)
+				chunk.transfer.getStats().addChunk();
+			if (chunk.swarm != null)
+				chunk.swarm.delivered(chunk.fromName, chunk.packageNo,
+						chunk.packageSize);
+			else
+				sendFileAck(jxtaService, chunk.fromName, chunk.filename,
+						chunk.packageNo);
+
+			Log.d(JxtaApp.TAG, "FILE-PACKAGE (" + chunk.packageNo + "/"
+					+ chunk.filePackageSize + ") FROM " + chunk.fromName + " ("
+					+ new SimpleDateFormat("dd.MM.yy HH:mm:ss").format(new Date())
+					+ "): " + chunk.filename + " (PeerID: " + chunk.from + ")");
+		}
+
+		if (complete && first.swarm == null)
+			finishIncomingTransfer(jxtaService, first.transferKey,
+					first.fromName, first.filename);
+	}
+
+	/**
+	 * Drops a damaged chunk. The sender of a normal transfer is asked to send
+	 * it again at once, the range of a swarm download is requested again
+	 * after its timeout.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object for the pipe to the
+	 *            sender
+	 * @param swarm
+	 *            The swarm download of the chunk or null
+	 * @param fromName
+	 *            Name of the sending peer
+	 * @param filename
+	 *            Name of the file
+	 * @param packageNo
+	 *            First package of the chunk
+	 */
+	private void rejectChunk(Jxta jxtaService, SwarmDownload swarm,
+			String fromName, String filename, int packageNo) {
+		Log.d(JxtaApp.TAG, "FILE: chunk " + packageNo + " of " + filename
+				+ " from " + fromName + " is damaged");
+		if (swarm != null)
+			return;
+
+		Message msg = createMessage(Jxta.MessageType.FILE_ACK);
+		msg.addMessageElement(new StringMessageElement("Filename", filename,
+				null));
+		msg.addMessageElement(new StringMessageElement("PackageNo", String
+				.valueOf(packageNo), null));
+		msg.addMessageElement(new StringMessageElement("Resend", "true", null));
+
+		sendToPeer(jxtaService, fromName, msg);
+	}
+
+	/**
+	 * Closes a completely received file, adds its packages to the
+	 * {@link ChunkStore}, shares it and adds it to the history of the peer.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object
+	 * @param transferKey
+	 *            Key of the transfer in {@link #incomingTransfers}
+	 * @param fromName
+	 *            Name of the sending peer
+	 * @param filename
+	 *            Name of the file
+	 */
+	private void finishIncomingTransfer(Jxta jxtaService,
+			String transferKey, String fromName, String filename) {
+		IncomingFileTransfer transfer = closeIncomingTransfer(transferKey);
+		if (transfer != null && !transfer.isVerified()) {
+			Log.d(JxtaApp.TAG, "FILE: " + filename + " from " + fromName
+					+ " does not match its Merkle root");
+			postHistory(jxtaService, fromName, "Receive damaged file "
+					+ filename);
+			return;
+		}
+
+		if (transfer != null && filename.indexOf('/') != -1
+				&& transfer.getFile().getName().startsWith(PACK_PREFIX)) {
+			File packFile = transfer.getFile();
+			try {
+				int count = DirectoryPacker.unpack(packFile, packFile
+						.getParentFile());
+				packFile.delete();
+				Log.d(JxtaApp.TAG, "FILE: unpacked " + count + " files of "
+						+ filename);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		} else if (transfer != null) {
+			sharedFiles.put(filename, transfer.getFile());
+			if (transfer.getPackageHashes() != null)
+				chunkStore.addFile(transfer.getFile(), transfer
+						.getPackageHashes(), PACKAGE_SIZE);
+		}
+
+		postHistory(jxtaService, fromName, "Receive file " + filename);
+	}
+
+	/**
+	 * Adds an entry to the history of a peer in the UI thread.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object
+	 * @param fromName
+	 *            Name of the peer
+	 * @param text
+	 *            Text of the entry
+	 */
+	private void postHistory(final Jxta jxtaService, final String fromName,
+			final String text) {
 		JxtaApp.handler.post(new Runnable() {
 			public void run() {
 				Peer peer = jxtaService.getPeerByName(fromName);
+				if (peer == null)
+					return;
 
 				peer.addHistory("> " + fromName, new SimpleDateFormat(
-						"dd.MM.yy HH:mm:ss").format(new Date()),
-						"Receive file " + filename);
+						"dd.MM.yy HH:mm:ss").format(new Date()), text);
 			}
 		});
 	}
@@ -0,0 +1,458 @@
+package jxtaapp.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Receiver side state of one file transfer (see {@link FileTransfer}). Holds
+ * the file open for the whole transfer and writes every package with a
+ * {@link FileChannel} write at its position, consecutive chunks with one
+ * gathering write, so no reopen is needed per package. The writer remembers
+ * which packages arrived, so a package which is retransmitted because its
+ * acknowledgement got lost is written only once.
+ * <p>
+ * The received packages are also recorded in a manifest file next to the
+ * received file ({@link #MANIFEST_SUFFIX}), so an interrupted transfer can be
+ * resumed later with only the missing packages. The manifest is a bitmap
+ * with one bit per package and is written after every
+ * {@link #MANIFEST_FLUSH_PACKAGES} packages and on close, not per package.
+ * It is deleted when the transfer is complete.
+ * <p>
+ * Manifest format: int package count, long file size (-1 if unknown), long
+ * end of the written data, followed by the bitmap.
+ * <p>
+ * If the sender offered the hashes of the packages or the {@link MerkleTree}
+ * root of the file, every arriving package is hashed while it is still in
+ * memory ({@link #verify(int, int, byte[], int)}). A package which does not
+ * match its offered hash is rejected, and the root of the complete file is
+ * computed from these hashes on close, so the file is not read again. Only
+ * packages which were not hashed on arrival, i.e. those of an earlier attempt
+ * listed in the manifest, are read from disk and hashed for it; the offered
+ * hashes are never taken in their place, so a stale manifest fails the check.
+ */
+class IncomingFileTransfer {
+	public final static String MANIFEST_SUFFIX = ".manifest";
+	private final static int MANIFEST_FLUSH_PACKAGES = 32;
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private File manifestFile;
+	private byte[] packageHashes = null;
+	private RandomAccessFile manifest = null;
+	private int packageCount;
+	private int packageSize;
+	private byte[] merkleRoot = null;
+	private byte[] leafHashes = null;
+	private BitSet hashed;
+	private MessageDigest digest;
+	private boolean verified = true;
+	private TransferStats stats = null;
+	private long expectedFileSize;
+	private BitSet received;
+	private int receivedCount = 0;
+	private int unflushedCount = 0;
+	private long fileSize = 0;
+	private long lastAccess;
+
+	/**
+	 * Opens (or creates) the file for writing. If a manifest of an earlier
+	 * attempt of the same transfer exists, the packages recorded there count
+	 * as received.
+	 *
+	 * @param file
+	 *            The received file
+	 * @param packageCount
+	 *            Number of packages of the transfer including the end of file
+	 *            package
+	 * @param packageSize
+	 *            Size of a package in bytes
+	 * @param expectedFileSize
+	 *            Size of the file if already known, otherwise -1
+	 * @param preallocateSize
+	 *            Expected file size to reserve on disk for a new file, 0 for
+	 *            none
+	 * @throws IOException
+	 */
+	public IncomingFileTransfer(File file, int packageCount, int packageSize,
+			long expectedFileSize, long preallocateSize) throws IOException {
+		this.file = file;
+		this.packageCount = packageCount;
+		this.packageSize = packageSize;
+		this.hashed = new BitSet(packageCount);
+		this.digest = MerkleTree.createDigest();
+		this.expectedFileSize = expectedFileSize;
+		this.received = new BitSet(packageCount);
+		this.manifestFile = new File(file.getPath() + MANIFEST_SUFFIX);
+		this.lastAccess = System.currentTimeMillis();
+
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+
+		if (manifestFile.exists())
+			loadManifest();
+
+		if (receivedCount == 0 && preallocateSize > 0 && raf.length() == 0)
+			raf.setLength(preallocateSize);
+	}
+
+	/**
+	 * Writes a chunk of packages at the given position of the file.
+	 *
+	 * @param packageNo
+	 *            First package of the chunk, starting with 1
+	 * @param packages
+	 *            Number of packages of the chunk
+	 * @param offset
+	 *            Position of the chunk in the file
+	 * @param content
+	 *            Content of the chunk
+	 * @param length
+	 *            Number of bytes of the content, 0 or -1 for the end of file
+	 *            package
+	 * @return false if the packages are unknown or were already written
+	 * @throws IOException
+	 */
+	public synchronized boolean write(int packageNo, int packages,
+			long offset, byte[] content, int length) throws IOException {
+		ByteBuffer[] parts;
+		if (length > 0)
+			parts = new ByteBuffer[] { ByteBuffer.wrap(content, 0, length) };
+		else
+			parts = new ByteBuffer[0];
+
+		return write(packageNo, packages, offset, parts);
+	}
+
+	/**
+	 * Writes consecutive chunks with one gathering write at the given
+	 * position of the file.
+	 *
+	 * @param packageNo
+	 *            First package of the chunks, starting with 1
+	 * @param packages
+	 *            Number of packages of all chunks
+	 * @param offset
+	 *            Position of the first chunk in the file
+	 * @param parts
+	 *            Contents of the chunks, none for the end of file package
+	 * @return false if the packages are unknown or were already written
+	 * @throws IOException
+	 */
+	public synchronized boolean write(int packageNo, int packages,
+			long offset, ByteBuffer[] parts) throws IOException {
+		lastAccess = System.currentTimeMillis();
+
+		if (packageNo < 1 || packageNo + packages - 1 > packageCount
+				|| received.nextClearBit(packageNo - 1) >= packageNo - 1
+						+ packages) {
+			if (stats != null)
+				stats.addRetransmission();
+			return false;
+		}
+
+		long length = 0;
+		for (ByteBuffer part : parts)
+			length += part.remaining();
+
+		if (length > 0) {
+			channel.position(offset);
+			long written = 0;
+			while (written < length)
+				written += channel.write(parts);
+			fileSize = Math.max(fileSize, offset + length);
+		}
+
+		if (stats != null)
+			stats.addBytes(length);
+
+		for (int i = packageNo - 1; i < packageNo - 1 + packages; i++) {
+			if (!received.get(i)) {
+				received.set(i);
+				receivedCount++;
+			}
+		}
+
+		unflushedCount += packages;
+		if (unflushedCount >= MANIFEST_FLUSH_PACKAGES && !isComplete())
+			flushManifest();
+
+		return true;
+	}
+
+	/**
+	 * @return The received file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @param packageHashes
+	 *            Concatenated {@link ChunkStore#HASH_ALGORITHM} hashes of the
+	 *            packages as offered by the sender
+	 */
+	public synchronized void setPackageHashes(byte[] packageHashes) {
+		this.packageHashes = packageHashes;
+		if (leafHashes == null)
+			leafHashes = new byte[(packageCount - 1) * ChunkStore.HASH_SIZE];
+	}
+
+	/**
+	 * @return Concatenated hashes of the packages or null if the sender did
+	 *         not offer them
+	 */
+	public synchronized byte[] getPackageHashes() {
+		return packageHashes;
+	}
+
+	/**
+	 * @return Statistics of the transfer
+	 */
+	public synchronized TransferStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * @param stats
+	 *            Statistics of the transfer, the packages of an earlier
+	 *            attempt count as done
+	 */
+	public synchronized void setStats(TransferStats stats) {
+		this.stats = stats;
+		long resumed = (long) receivedCount * packageSize;
+		if (expectedFileSize != -1)
+			resumed = Math.min(resumed, expectedFileSize);
+		stats.addBytes(resumed);
+	}
+
+	/**
+	 * @param merkleRoot
+	 *            {@link MerkleTree} root of the file as offered by the sender
+	 */
+	public synchronized void setMerkleRoot(byte[] merkleRoot) {
+		this.merkleRoot = merkleRoot;
+		if (leafHashes == null)
+			leafHashes = new byte[(packageCount - 1) * ChunkStore.HASH_SIZE];
+	}
+
+	/**
+	 * @return false if the complete file does not match the offered
+	 *         {@link MerkleTree} root, valid after {@link #close()}
+	 */
+	public synchronized boolean isVerified() {
+		return verified;
+	}
+
+	/**
+	 * Hashes the packages of an arrived chunk before it is written and checks
+	 * them against the offered hashes. Does nothing if the sender offered
+	 * neither hashes nor a root.
+	 *
+	 * @param packageNo
+	 *            First package of the chunk, starting with 1
+	 * @param packages
+	 *            Number of packages of the chunk
+	 * @param content
+	 *            Content of the chunk
+	 * @param length
+	 *            Number of bytes of the content
+	 * @return false if a package does not match its offered hash
+	 */
+	public synchronized boolean verify(int packageNo, int packages,
+			byte[] content, int length) {
+		if (leafHashes == null || length <= 0)
+			return true;
+		if (packageNo < 1)
+			return false;
+
+		int size = ChunkStore.HASH_SIZE;
+		byte[] hashes = new byte[packages * size];
+		for (int i = 0; i < packages; i++) {
+			int index = packageNo - 1 + i;
+			int start = i * packageSize;
+			if (index >= packageCount - 1 || start >= length)
+				return false;
+
+			digest.update(content, start, Math.min(packageSize, length - start));
+			System.arraycopy(digest.digest(), 0, hashes, i * size, size);
+			if (packageHashes != null
+					&& (index + 1) * size <= packageHashes.length
+					&& !regionEquals(hashes, i * size, packageHashes, index
+							* size, size))
+				return false;
+		}
+
+		System.arraycopy(hashes, 0, leafHashes, (packageNo - 1) * size,
+				hashes.length);
+		hashed.set(packageNo - 1, packageNo - 1 + packages);
+		return true;
+	}
+
+	/**
+	 * @param packageNo
+	 *            Number of the package, starting with 1
+	 * @return true if the package is already written
+	 */
+	public synchronized boolean isReceived(int packageNo) {
+		return received.get(packageNo - 1);
+	}
+
+	/**
+	 * @return A bitmap of the received packages, bit 0 of the first byte is
+	 *         package 1
+	 */
+	public synchronized byte[] getReceived() {
+		byte[] bitmap = new byte[(packageCount + 7) / 8];
+		for (int i = received.nextSetBit(0); i >= 0; i = received
+				.nextSetBit(i + 1))
+			bitmap[i / 8] |= 1 << (i % 8);
+		return bitmap;
+	}
+
+	/**
+	 * @return true if all packages including the end of file package arrived
+	 */
+	public synchronized boolean isComplete() {
+		return receivedCount == packageCount;
+	}
+
+	/**
+	 * @return Milliseconds since the last package arrived
+	 */
+	public synchronized long getIdleTime() {
+		return System.currentTimeMillis() - lastAccess;
+	}
+
+	/**
+	 * Closes the file. A complete file is cut to its real size, which may be
+	 * smaller than the preallocated one, and its manifest is deleted. For an
+	 * incomplete file the manifest is written.
+	 */
+	public synchronized void close() {
+		try {
+			if (isComplete()) {
+				if (leafHashes != null) {
+					byte[] hashes = getLeafHashes();
+					verified = (packageHashes == null || Arrays.equals(
+							hashes, packageHashes))
+							&& (merkleRoot == null || Arrays.equals(MerkleTree
+									.root(hashes), merkleRoot));
+				}
+				channel.truncate(fileSize);
+				if (manifest != null)
+					manifest.close();
+				manifestFile.delete();
+			} else {
+				flushManifest();
+				manifest.close();
+			}
+			raf.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		if (stats != null)
+			stats.finish(isComplete() && verified);
+	}
+
+	/**
+	 * Completes the hashes of all data packages: packages which were not
+	 * hashed on arrival are read from the file and hashed.
+	 *
+	 * @return Concatenated hashes of the data packages
+	 * @throws IOException
+	 */
+	private byte[] getLeafHashes() throws IOException {
+		int size = ChunkStore.HASH_SIZE;
+		long length = expectedFileSize != -1 ? expectedFileSize : fileSize;
+		ByteBuffer buffer = null;
+
+		for (int i = hashed.nextClearBit(0); i < packageCount - 1; i = hashed
+				.nextClearBit(i + 1)) {
+			long offset = (long) i * packageSize;
+			if (buffer == null)
+				buffer = ByteBuffer.allocate(packageSize);
+			buffer.clear();
+			buffer.limit((int) Math.min(packageSize, length - offset));
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, offset + buffer.position()) <= 0)
+					break;
+			}
+			digest.update(buffer.array(), 0, buffer.position());
+			System.arraycopy(digest.digest(), 0, leafHashes, i * size, size);
+		}
+
+		return leafHashes;
+	}
+
+	private static boolean regionEquals(byte[] a, int aOffset, byte[] b,
+			int bOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[aOffset + i] != b[bOffset + i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the manifest of an earlier attempt. A manifest of another file
+	 * with the same name (different package count or file size) is ignored.
+	 *
+	 * @throws IOException
+	 */
+	private void loadManifest() throws IOException {
+		manifest = new RandomAccessFile(manifestFile, "rw");
+		try {
+			int count = manifest.readInt();
+			long size = manifest.readLong();
+			long written = manifest.readLong();
+			if (count != packageCount
+					|| (size != -1 && expectedFileSize != -1 && size != expectedFileSize))
+				return;
+
+			byte[] bitmap = new byte[(packageCount + 7) / 8];
+			manifest.readFully(bitmap);
+			for (int i = 0; i < packageCount; i++) {
+				if ((bitmap[i / 8] & (1 << (i % 8))) != 0) {
+					received.set(i);
+					receivedCount++;
+				}
+			}
+			if (expectedFileSize == -1)
+				expectedFileSize = size;
+			fileSize = written;
+		} catch (IOException e) {
+			// truncated manifest, start from scratch
+			received.clear();
+			receivedCount = 0;
+		}
+	}
+
+	/**
+	 * Writes the bitmap of the received packages to the manifest. The file
+	 * content is forced to disk first, so the manifest never lists a package
+	 * which is not stored.
+	 *
+	 * @throws IOException
+	 */
+	private void flushManifest() throws IOException {
+		if (manifest == null)
+			manifest = new RandomAccessFile(manifestFile, "rw");
+
+		channel.force(false);
+
+		manifest.seek(0);
+		manifest.writeInt(packageCount);
+		manifest.writeLong(expectedFileSize);
+		manifest.writeLong(fileSize);
+		manifest.write(getReceived());
+		unflushedCount = 0;
+	}
+}
@@ -1,15 +1,37 @@
 package jxtaapp.service;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 import jxtaapp.ui.JxtaApp;
 import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessageElement;
+import net.jxta.endpoint.MessageTransport;
 import net.jxta.exception.PeerGroupException;
 import net.jxta.id.IDFactory;
+import net.jxta.impl.endpoint.router.EndpointRouter;
+import net.jxta.impl.endpoint.router.RouteControl;
 import net.jxta.peer.PeerID;
 import net.jxta.peergroup.PeerGroup;
 import net.jxta.peergroup.PeerGroupID;
@@ -42,11 +64,32 @@ public class Jxta implements PipeMsgListener {
 	private static String rdvlist = "http://192.168.178.74/seeds.txt";
 	private boolean actAsRendezvous = false;
 	private final static long PIPE_ESTABLISHING_TIMEOUT = 1 * 60 * 1000;
+	private final static long PIPE_FAILURE_CACHE_TIME = 30 * 1000;
+	private final static int SEND_THREADS = 4;
+	private final static int MAX_PREWARMS = 2;
+	private final static int MAX_CONTACTS = 64;
+	private final static int PREWARM_MIN_CONTACTS = 2;
+	public final static String DEFAULT_ROOM = "All";
 
 	private Discovery discovery;
-	private HashMap<String, OutputPipe> establishedPipes;
+	private PipePool pipePool;
+	private ConcurrentHashMap<String, FutureTask<OutputPipe>> pendingPipes;
+	private ConcurrentHashMap<String, Long> failedPipes;
+	private Map<String, Integer> contacts;
+	private ExecutorService prewarmExecutor;
+	private StreamTransport streamTransport;
+	private LivenessMonitor livenessMonitor;
+	private Semaphore prewarmBudget;
 	private FileTransfer fileTransferService;
 	private TextTransfer textTransferService;
+	private BroadcastTransfer broadcastTransferService;
+	private HashMap<String, OutputPipe> roomPipes;
+	private TransferScheduler transferScheduler;
+	private MessageDispatcher messageDispatcher;
+	private PriorityGate priorityGate;
+	private ExecutorService sendExecutor;
+	private OutboundQueue outboundQueue;
+	private Set<String> drainingPeers = new HashSet<String>();
 
 	private String instanceName;
 	private File cacheHome;
@@ -54,8 +97,56 @@ public class Jxta implements PipeMsgListener {
 	private String password;
 	private String description;
 
+	/**
+	 * Result of {@link Jxta#sendMsgToPeerAsync(String, String, MessageType,
+	 * SendCallback)}, called in the UI thread.
+	 */
+	public interface SendCallback {
+		/**
+		 * The message was sent.
+		 */
+		public void onSuccess(String peername, String message);
+
+		/**
+		 * The peer is not reachable, the message is queued in the
+		 * {@link OutboundQueue} and not sent yet.
+		 */
+		public void onQueued(String peername, String message);
+
+		public void onFailure(String peername, String message, Exception e);
+	}
+
+	/**
+	 * Thrown if a peer is not discovered or no pipe to it can be set up, the
+	 * message is queued in the {@link OutboundQueue}.
+	 */
+	static class PeerUnreachableException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public PeerUnreachableException(String message) {
+			super(message);
+		}
+	}
+
 	public enum MessageType {
-		TEXT, FILE;
+		TEXT(MessagePriority.INTERACTIVE), FILE(MessagePriority.BULK), FILE_OFFER(
+				MessagePriority.CONTROL), FILE_ACK(MessagePriority.CONTROL), FILE_REQUEST(
+				MessagePriority.BULK), BROADCAST(MessagePriority.INTERACTIVE), PING(
+				MessagePriority.CONTROL), PONG(MessagePriority.CONTROL);
+
+		private MessagePriority priority;
+
+		private MessageType(MessagePriority priority) {
+			this.priority = priority;
+		}
+
+		/**
+		 * @return Priority class of the messages of this type
+		 */
+		public MessagePriority getPriority() {
+			return priority;
+		}
+
 		public String toString() {
 			return name().toString();
 		}
@@ -74,11 +165,23 @@ public class Jxta implements PipeMsgListener {
 	 * Stops the network connection
 	 */
 	public void stop() {
-		for (OutputPipe pipe : establishedPipes.values()) {
-			if (!pipe.isClosed())
+		livenessMonitor.stop();
+		pipePool.close();
+		synchronized (roomPipes) {
+			for (OutputPipe pipe : roomPipes.values())
 				pipe.close();
 		}
 
+		sendExecutor.shutdownNow();
+		prewarmExecutor.shutdownNow();
+		if (streamTransport != null)
+			streamTransport.stop();
+		outboundQueue.stop();
+		messageDispatcher.stop();
+		transferScheduler.stop();
+		fileTransferService.stop();
+		textTransferService.stop();
+
 		netPeerGroup.stopApp();
 	}
 
@@ -145,25 +248,169 @@ public class Jxta implements PipeMsgListener {
 			rendezvousService.waitForRdv();
 		}
 
-		establishedPipes = new HashMap<String, OutputPipe>();
+		pipePool = new PipePool();
+		pendingPipes = new ConcurrentHashMap<String, FutureTask<OutputPipe>>();
+		failedPipes = new ConcurrentHashMap<String, Long>();
+		// access ordered, so the least recent contact is forgotten first
+		contacts = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<String, Integer> eldest) {
+				return size() > MAX_CONTACTS;
+			}
+		};
+		prewarmBudget = new Semaphore(MAX_PREWARMS);
+		roomPipes = new HashMap<String, OutputPipe>();
 
 		fileTransferService = new FileTransfer(netPeerGroup.getPeerID()
 				.toString(), instanceName);
 		textTransferService = new TextTransfer(netPeerGroup.getPeerID()
 				.toString(), instanceName);
+		broadcastTransferService = new BroadcastTransfer(netPeerGroup
+				.getPeerID().toString(), instanceName);
+		transferScheduler = new TransferScheduler(this, fileTransferService);
+		messageDispatcher = new MessageDispatcher(this);
+		priorityGate = new PriorityGate();
+		fileTransferService.setPriorityGate(priorityGate);
+		textTransferService.setPriorityGate(priorityGate);
+		textTransferService.setJxtaService(this);
+		broadcastTransferService.setPriorityGate(priorityGate);
+		fileTransferService.registerHandlers(messageDispatcher);
+		textTransferService.registerHandlers(messageDispatcher);
+		broadcastTransferService.registerHandlers(messageDispatcher);
+		livenessMonitor = new LivenessMonitor(this, netPeerGroup.getPeerID()
+				.toString(), instanceName);
+		livenessMonitor.setPriorityGate(priorityGate);
+		livenessMonitor.registerHandlers(messageDispatcher);
+		livenessMonitor.start();
+		streamTransport = new StreamTransport(netPeerGroup, this,
+				fileTransferService);
+		try {
+			streamTransport.start();
+			fileTransferService.setStreamTransport(streamTransport);
+		} catch (IOException e) {
+			// large files are sent as messages then
+			e.printStackTrace();
+			Log.d(JxtaApp.TAG, "Stream transport not available");
+			streamTransport.stop();
+			streamTransport = null;
+		}
+		outboundQueue = new OutboundQueue(new File(new File(cacheHome,
+				instanceName), "outbound"));
+		sendExecutor = Executors.newFixedThreadPool(SEND_THREADS,
+				new ThreadFactory() {
+					private int count = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Send Thread " + ++count);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		prewarmExecutor = Executors.newFixedThreadPool(MAX_PREWARMS,
+				new ThreadFactory() {
+					private int count = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Pipe Prewarm Thread "
+								+ ++count);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
 	}
 
 	/**
-	 * Start the discovery server {@link Discovery}
+	 * Start the discovery server {@link Discovery} and joins the
+	 * {@link #DEFAULT_ROOM}
 	 */
 	public void startDiscovery() {
-		Thread discoveryServerThread = new Thread(discovery = new Discovery(
-				networkManager, instanceName, this), "Discovery Thread");
+		discovery = new Discovery(networkManager, instanceName, this);
+		discovery.addPeerListener(new PeerListener() {
+			public void peerDiscovered(Peer peer) {
+				// a recently failed pipe is tried again once its failure
+				// expired
+				prewarmPipe(peer.getName());
+				drainOutboundQueue(peer.getName());
+			}
+		});
+
+		Thread discoveryServerThread = new Thread(discovery,
+				"Discovery Thread");
 		discoveryServerThread.start();
+
+		joinRoom(DEFAULT_ROOM);
+	}
+
+	/**
+	 * Joins a room to receive its broadcasts, see
+	 * {@link Discovery#joinRoom(String)}.
+	 * 
+	 * @param room
+	 *            Name of the room
+	 * @return true if the room is joined
+	 */
+	public boolean joinRoom(String room) {
+		try {
+			discovery.joinRoom(room);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Leaves a room, its broadcasts are no longer received.
+	 * 
+	 * @param room
+	 *            Name of the room
+	 */
+	public void leaveRoom(String room) {
+		discovery.leaveRoom(room);
+
+		synchronized (roomPipes) {
+			OutputPipe pipe = roomPipes.remove(room);
+			if (pipe != null)
+				pipe.close();
+		}
+	}
+
+	/**
+	 * Sends a text to all peers of a room with one message over the propagate
+	 * pipe of the room, the room is joined first if necessary. Peers which are
+	 * not reachable at the moment miss the text, it is not queued.
+	 * 
+	 * @param room
+	 *            Name of the room, e.g. {@link #DEFAULT_ROOM} for all peers
+	 * @param message
+	 *            The message text
+	 * @return true if the message was sent
+	 */
+	public boolean broadcastMsg(String room, String message) {
+		try {
+			OutputPipe pipe;
+			synchronized (roomPipes) {
+				pipe = roomPipes.get(room);
+				if (pipe == null || pipe.isClosed()) {
+					PipeAdvertisement adv = discovery.joinRoom(room);
+					pipe = netPeerGroup.getPipeService().createOutputPipe(adv,
+							PIPE_ESTABLISHING_TIMEOUT);
+					roomPipes.put(room, pipe);
+				}
+			}
+
+			broadcastTransferService.sendBroadcast(pipe, room, message);
+			return true;
+		} catch (IOException e) {
+			Log.d(JxtaApp.TAG, "Broadcast to room " + room + " failed: "
+					+ e.getMessage());
+			return false;
+		}
 	}
 
 	/**
-	 * Sends a message of any {@link MessageType}.
+	 * Sends a message of any {@link MessageType}. If the peer is not reachable
+	 * the message is queued and sent when the peer is discovered again.
 	 * 
 	 * @param peername
 	 *            Name of the receiving peer
@@ -171,34 +418,366 @@ public class Jxta implements PipeMsgListener {
 	 *            The message content
 	 * @param messageType
 	 *            The {@link MessageType}
-	 * @return true if the message was send successfully
+	 * @return true if the message was send successfully or queued
 	 */
 	public boolean sendMsgToPeer(String peername, String message,
 			MessageType messageType) {
-		PipeAdvertisement peer = getPipeAdvertisementByName(peername);
-
-		if (peer == null) {
-			Log.d(JxtaApp.TAG, "Peer not found while discovery");
+		try {
+			sendOrQueue(peername, message, messageType);
+			return true;
+		} catch (IOException e) {
+			Log.d(JxtaApp.TAG, e.getMessage());
 			return false;
 		}
+	}
+
+	/**
+	 * Sends a message of any {@link MessageType} in the background and
+	 * returns at once, so it can be called from the UI thread. Setting up the
+	 * pipe runs on a thread of a pool of {@link #SEND_THREADS} threads, which
+	 * also waits for a file transfer run by the {@link TransferScheduler}.
+	 * 
+	 * @param peername
+	 *            Name of the receiving peer
+	 * @param message
+	 *            The message content
+	 * @param messageType
+	 *            The {@link MessageType}
+	 * @param callback
+	 *            Informed in the UI thread when the message is sent, queued
+	 *            or failed, may be null
+	 * @return Future with the result, true if the message is sent, false if
+	 *         it is queued; get() throws an ExecutionException with the reason
+	 *         of a failure
+	 */
+	public Future<Boolean> sendMsgToPeerAsync(final String peername,
+			final String message, final MessageType messageType,
+			final SendCallback callback) {
+		return sendExecutor.submit(new Callable<Boolean>() {
+			public Boolean call() throws IOException {
+				boolean sent;
+				try {
+					sent = sendOrQueue(peername, message, messageType);
+				} catch (final IOException e) {
+					Log.d(JxtaApp.TAG, e.getMessage());
+					if (callback != null)
+						JxtaApp.handler.post(new Runnable() {
+							public void run() {
+								callback.onFailure(peername, message, e);
+							}
+						});
+					throw e;
+				}
+
+				if (callback != null) {
+					final boolean queued = !sent;
+					JxtaApp.handler.post(new Runnable() {
+						public void run() {
+							if (queued)
+								callback.onQueued(peername, message);
+							else
+								callback.onSuccess(peername, message);
+						}
+					});
+				}
+				return Boolean.valueOf(sent);
+			}
+		});
+	}
 
-		OutputPipe pipe = setupPipe(peer);
+	/**
+	 * Sends a message or queues it in the {@link OutboundQueue} if the peer is
+	 * not reachable. A message is queued as well if older messages for the
+	 * peer are still queued, so the messages arrive in order.
+	 * 
+	 * @return true if the message is sent, false if it is queued
+	 * @throws IOException
+	 *             If the message could not be sent nor queued
+	 */
+	private boolean sendOrQueue(String peername, String message,
+			MessageType messageType) throws IOException {
+		if (outboundQueue.hasPending(peername)) {
+			outboundQueue.add(peername, message, messageType);
+			drainOutboundQueue(peername);
+			return false;
+		}
 
-		if (pipe == null) {
-			Log.d(JxtaApp.TAG, "Cannot setup pipe to this peer");
+		try {
+			send(peername, message, messageType);
+			return true;
+		} catch (PeerUnreachableException e) {
+			Log.d(JxtaApp.TAG, e.getMessage());
+			outboundQueue.add(peername, message, messageType);
 			return false;
 		}
+	}
+
+	/**
+	 * Queues texts of a batch which could not be sent (see
+	 * {@link TextTransfer}), they are sent when the peer is discovered again
+	 * or with the next message to it.
+	 * 
+	 * @param peername
+	 *            Name of the peer
+	 * @param texts
+	 *            The texts in the order they were written
+	 */
+	void queueTexts(String peername, List<String> texts) {
+		for (String text : texts) {
+			try {
+				outboundQueue.add(peername, text, MessageType.TEXT);
+			} catch (IOException e) {
+				e.printStackTrace();
+				Log.d(JxtaApp.TAG, "Text to " + peername + " lost: "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Sends the queued messages of a peer in the background, in order, until
+	 * the queue is empty or a message fails. A failed message stays queued and
+	 * is retried when the peer is discovered again, its pipe is resolved again
+	 * or a new message is queued for it. Only a message which can never be
+	 * sent, i.e. a file which does not exist anymore, is dropped.
+	 * 
+	 * @param peername
+	 *            Name of the peer
+	 */
+	private void drainOutboundQueue(final String peername) {
+		if (!outboundQueue.hasPending(peername) || sendExecutor.isShutdown())
+			return;
+
+		synchronized (drainingPeers) {
+			if (!drainingPeers.add(peername))
+				return;
+		}
+
+		sendExecutor.execute(new Runnable() {
+			public void run() {
+				boolean failed = false;
+
+				try {
+					OutboundQueue.OutboundMessage queued;
+					while ((queued = outboundQueue.peek(peername)) != null) {
+						try {
+							send(peername, queued.getMessage(), queued
+									.getType());
+						} catch (FileNotFoundException e) {
+							Log.d(JxtaApp.TAG, "Queued message to " + peername
+									+ " dropped: " + e.getMessage());
+						} catch (IOException e) {
+							Log.d(JxtaApp.TAG, "Queued message to " + peername
+									+ " kept: " + e.getMessage());
+							failed = true;
+							break;
+						}
+						outboundQueue.delivered(peername, queued);
+					}
+				} finally {
+					synchronized (drainingPeers) {
+						drainingPeers.remove(peername);
+					}
+				}
+
+				// a message queued while the queue was found empty
+				if (!failed)
+					drainOutboundQueue(peername);
+			}
+		});
+	}
+
+	/**
+	 * Sends a message of any {@link MessageType}, blocks until it is sent. A
+	 * file is sent by the {@link TransferScheduler}, so it counts against its
+	 * limit of active transfers and shows up in its transfer list.
+	 * 
+	 * @param peername
+	 *            Name of the receiving peer
+	 * @param message
+	 *            The message content
+	 * @param messageType
+	 *            The {@link MessageType}
+	 * @throws IOException
+	 *             If the peer is unknown or unreachable or the message could
+	 *             not be sent
+	 */
+	private void send(String peername, String message, MessageType messageType)
+			throws IOException {
+		if (messageType.equals(MessageType.FILE)) {
+			transferScheduler.upload(peername, message).await();
+			recordContact(peername);
+			return;
+		}
+
+		PipeAdvertisement peer = getPipeAdvertisementByName(peername);
 
-		if (messageType.equals(MessageType.FILE))
-			fileTransferService.sendFile(pipe, message);
-		else
+		if (peer == null)
+			throw new PeerUnreachableException(
+					"Peer not found while discovery");
+
+		OutputPipe pipe = setupPipe(peer, true);
+
+		if (pipe == null)
+			throw new PeerUnreachableException(
+					"Cannot setup pipe to this peer");
+
+		recordContact(peername);
+		try {
 			// if (messageType.equals(MessageType.TEXT))
 			textTransferService.sendText(pipe, message);
+		} finally {
+			// don't close pipe, the pool holds it open for later use
+			pipePool.release(peername, pipe);
+		}
+	}
+
+	/**
+	 * @return Service for text messages, e.g. to switch on batching with
+	 *         {@link TextTransfer#setBatching(boolean)}
+	 */
+	public TextTransfer getTextTransfer() {
+		return textTransferService;
+	}
+
+	/**
+	 * @return Service for broadcasts to rooms, e.g. for the number of dropped
+	 *         duplicates
+	 */
+	public BroadcastTransfer getBroadcastTransfer() {
+		return broadcastTransferService;
+	}
+
+	/**
+	 * @return Scheduler for concurrent file transfers, see
+	 *         {@link TransferScheduler#upload(String, String)} and
+	 *         {@link TransferScheduler#download(String)}
+	 */
+	public TransferScheduler getTransferScheduler() {
+		return transferScheduler;
+	}
+
+	/**
+	 * @return Dispatcher of the received messages, to register handlers for
+	 *         new message types and to read the statistics per type
+	 */
+	public MessageDispatcher getMessageDispatcher() {
+		return messageDispatcher;
+	}
+
+	/**
+	 * @return Gate which lets sent control and chat messages go before file
+	 *         chunks, with the delay of the chunks
+	 */
+	public PriorityGate getPriorityGate() {
+		return priorityGate;
+	}
+
+	/**
+	 * @return Progress and throughput of the running file transfers, see
+	 *         {@link TransferMonitor}
+	 */
+	public TransferMonitor getTransferMonitor() {
+		return fileTransferService.getTransferMonitor();
+	}
+
+	/**
+	 * Downloads a file from all discovered peers which share it, see
+	 * {@link FileTransfer#downloadFile(Jxta, String, List)}.
+	 * 
+	 * @param filename
+	 *            Name of the file
+	 * @return true if the file was downloaded completely
+	 */
+	public boolean downloadFile(String filename) {
+		List<String> peernames = new ArrayList<String>();
+
+		synchronized (discovery.getPeerList()) {
+			for (Peer peer : discovery.getPeerList())
+				peernames.add(peer.getName());
+		}
+
+		return fileTransferService.downloadFile(this, filename, peernames);
+	}
+
+	/**
+	 * Returns an output pipe to a peer, e.g. for answering a received message.
+	 * An already established pipe is reused.
+	 * 
+	 * @param peername
+	 *            Name of the peer
+	 * @return The established {@link OutputPipe}, on error null
+	 */
+	public OutputPipe getPipeToPeer(String peername) {
+		PipeAdvertisement peer = getPipeAdvertisementByName(peername);
+
+		if (peer == null) {
+			Log.d(JxtaApp.TAG, "Peer not found while discovery");
+			return null;
+		}
+
+		return setupPipe(peer, false);
+	}
+
+	/**
+	 * Like {@link #getPipeToPeer(String)}, but the pipe is leased from the
+	 * {@link PipePool} and not closed until it is released with
+	 * {@link #releasePipe(String, OutputPipe)}, e.g. for a file transfer.
+	 * 
+	 * @param peername
+	 *            Name of the peer
+	 * @return The leased {@link OutputPipe}, on error null
+	 */
+	OutputPipe leasePipeToPeer(String peername) {
+		PipeAdvertisement peer = getPipeAdvertisementByName(peername);
+
+		if (peer == null) {
+			Log.d(JxtaApp.TAG, "Peer not found while discovery");
+			return null;
+		}
+
+		return setupPipe(peer, true);
+	}
+
+	/**
+	 * @param peername
+	 *            Name of the peer
+	 * @param pipe
+	 *            A pipe from {@link #leasePipeToPeer(String)}
+	 */
+	void releasePipe(String peername, OutputPipe pipe) {
+		pipePool.release(peername, pipe);
+	}
+
+	/**
+	 * Runs a send on a thread of the send pool, e.g. an answer which needs a
+	 * pipe to be set up first and must not block the calling thread so long.
+	 * 
+	 * @param send
+	 *            The send, dropped if the service is stopped
+	 */
+	void executeSend(Runnable send) {
+		try {
+			sendExecutor.execute(send);
+		} catch (RejectedExecutionException e) {
+			// stopped
+			Log.d(JxtaApp.TAG, "Send dropped, service stopped");
+		}
+	}
 
-		// don't close pipe, hold all pipes open for later use
-		// closePipe(pipe, peer);
+	/**
+	 * @return Monitor of the pooled pipes with the round trip time per peer
+	 */
+	public LivenessMonitor getLivenessMonitor() {
+		return livenessMonitor;
+	}
 
-		return true;
+	/**
+	 * @return Pool of the established pipes with its hit, miss and eviction
+	 *         counters
+	 */
+	public PipePool getPipePool() {
+		return pipePool;
 	}
 
 	/**
@@ -209,8 +788,8 @@ public class Jxta implements PipeMsgListener {
 	 * @return pipe advertisement
 	 */
 	public PipeAdvertisement getPipeAdvertisementByName(String peername) {
-		PipeAdvertisement peer = null;
-		return getPeerByName(peername).getPipeAdvertisement();
+		Peer peer = getPeerByName(peername);
+		return peer != null ? peer.getPipeAdvertisement() : null;
 	}
 
 	/**
@@ -247,22 +826,97 @@ public class Jxta implements PipeMsgListener {
 
 	/**
 	 * Tries establishing a pipe to a given peer, identified by a pipe
-	 * advertisement. If a pipe to an advertisement is already established, this
-	 * will used and no new one is created. The timeout for this try is set by
-	 * {@link #PIPE_ESTABLISHING_TIMEOUT}.
+	 * advertisement. If a pipe to an advertisement is already established in
+	 * the {@link PipePool}, this will used and no new one is created. The
+	 * timeout for this try is set by {@link #PIPE_ESTABLISHING_TIMEOUT}.
+	 * <p>
+	 * Concurrent calls for the same peer share one try: the first caller
+	 * establishes the pipe, the others wait for its result. A failed try is
+	 * remembered for {@link #PIPE_FAILURE_CACHE_TIME}, calls in this time fail
+	 * at once.
 	 * 
 	 * @param peerAdv
+	 * @param lease
+	 *            true to lease the pipe from the pool, see
+	 *            {@link PipePool#lease(String)}
 	 * @return The established {@link OutputPipe}, on error null
 	 */
-	private OutputPipe setupPipe(PipeAdvertisement peerAdv) {
-		if (establishedPipes.containsKey(peerAdv.getName())) {
-			OutputPipe pipe = establishedPipes.get(peerAdv.getName());
-			if (!pipe.isClosed()) {
-				Log.d(JxtaApp.TAG, "Pipe already exist, use established pipe");
-				return pipe;
+	private OutputPipe setupPipe(final PipeAdvertisement peerAdv,
+			boolean lease) {
+		String peername = peerAdv.getName();
+		OutputPipe pipe = lease ? pipePool.lease(peername) : pipePool
+				.get(peername);
+		if (pipe != null) {
+			Log.d(JxtaApp.TAG, "Pipe already exist, use established pipe");
+			return pipe;
+		}
+
+		Long failedAt = failedPipes.get(peername);
+		if (failedAt != null) {
+			long age = System.currentTimeMillis() - failedAt.longValue();
+			if (age < PIPE_FAILURE_CACHE_TIME) {
+				Log.d(JxtaApp.TAG, "Pipe to peer " + peername
+						+ " failed recently, do not try again yet");
+				return null;
+			}
+			failedPipes.remove(peername, failedAt);
+		}
+
+		FutureTask<OutputPipe> task = createPipeTask(peerAdv);
+		FutureTask<OutputPipe> pending = pendingPipes.putIfAbsent(peername,
+				task);
+		if (pending == null) {
+			pending = task;
+			try {
+				task.run();
+			} finally {
+				pendingPipes.remove(peername, task);
 			}
+		} else {
+			Log.d(JxtaApp.TAG, "Wait for pipe to peer " + peername
+					+ " being established by another thread");
+		}
+
+		try {
+			pipe = pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (CancellationException e) {
+			return null;
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			return null;
 		}
 
+		if (pipe == null || !lease)
+			return pipe;
+		// null only if the new pipe was closed meanwhile
+		return pipePool.lease(peername);
+	}
+
+	/**
+	 * @param peerAdv
+	 * @return Task for {@link #pendingPipes} which runs
+	 *         {@link #createPipe(PipeAdvertisement)}
+	 */
+	private FutureTask<OutputPipe> createPipeTask(
+			final PipeAdvertisement peerAdv) {
+		return new FutureTask<OutputPipe>(new Callable<OutputPipe>() {
+			public OutputPipe call() {
+				return createPipe(peerAdv);
+			}
+		});
+	}
+
+	/**
+	 * Establishes a new pipe to a peer and adds it to the {@link PipePool},
+	 * remembers a failure.
+	 * 
+	 * @param peerAdv
+	 * @return The established {@link OutputPipe}, on error null
+	 */
+	private OutputPipe createPipe(PipeAdvertisement peerAdv) {
 		Log.d(JxtaApp.TAG, "Try to establish pipe to peer...");
 
 		PipeService pipeService = netPeerGroup.getPipeService();
@@ -272,18 +926,155 @@ public class Jxta implements PipeMsgListener {
 					PIPE_ESTABLISHING_TIMEOUT);
 		} catch (IOException e) {
 			e.printStackTrace();
-			return null;
 		}
 
-		if (outputPipe != null) {
-			establishedPipes.put(peerAdv.getName(), outputPipe);
-			Log.d(JxtaApp.TAG, "Pipe to peer " + peerAdv.getName()
-					+ " established");
+		if (outputPipe == null) {
+			failedPipes.put(peerAdv.getName(), Long.valueOf(System
+					.currentTimeMillis()));
+			return null;
 		}
 
+		failedPipes.remove(peerAdv.getName());
+		outputPipe = pipePool.put(peerAdv.getName(), outputPipe, false);
+		Log.d(JxtaApp.TAG, "Pipe to peer " + peerAdv.getName()
+				+ " established");
+
 		return outputPipe;
 	}
 
+	/**
+	 * Called by the {@link LivenessMonitor} for a peer which stopped answering
+	 * pings. The pipe is evicted, running file transfers to the peer are
+	 * aborted and the cached route to the peer is dropped, then a new pipe is
+	 * resolved in the background, which may take another route, e.g. over a
+	 * relay. The new pipe is registered in {@link #pendingPipes} at once, so
+	 * sends to the peer wait for it instead of resolving their own.
+	 * 
+	 * @param peername
+	 *            Name of the peer
+	 * @param peerId
+	 *            ID of the peer in JXTAs format, null if unknown
+	 */
+	void pipeDied(final String peername, String peerId) {
+		pipePool.remove(peername);
+		fileTransferService.abortTransfers(peername);
+		if (peerId != null)
+			deleteRoute(peerId);
+
+		PipeAdvertisement peer = getPipeAdvertisementByName(peername);
+		if (peer == null)
+			return;
+
+		final FutureTask<OutputPipe> task = createPipeTask(peer);
+		if (pendingPipes.putIfAbsent(peername, task) != null) {
+			// already being established
+			return;
+		}
+
+		try {
+			prewarmExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						pendingPipes.remove(peername, task);
+					}
+
+					try {
+						if (task.get() != null)
+							drainOutboundQueue(peername);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} catch (ExecutionException e) {
+						e.getCause().printStackTrace();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// stopped, senders which joined the task give up
+			task.cancel(false);
+			pendingPipes.remove(peername, task);
+		}
+	}
+
+	/**
+	 * Drops the route to a peer cached by the endpoint router, so the next
+	 * pipe to the peer resolves a new one.
+	 * 
+	 * @param peerId
+	 *            ID of the peer in JXTAs format
+	 */
+	private void deleteRoute(String peerId) {
+		MessageTransport router = netPeerGroup.getEndpointService()
+				.getMessageTransport("jxta");
+		if (!(router instanceof EndpointRouter))
+			return;
+
+		try {
+			RouteControl routeControl = (RouteControl) ((EndpointRouter) router)
+					.transportControl(EndpointRouter.GET_ROUTE_CONTROL, null);
+			if (routeControl != null)
+				routeControl.deleteRoute((PeerID) IDFactory.fromURI(new URI(
+						peerId)));
+		} catch (URISyntaxException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Counts a message to or from a peer, see {@link #prewarmPipe(String)}.
+	 * 
+	 * @param peername
+	 *            Name of the peer
+	 */
+	private void recordContact(String peername) {
+		synchronized (contacts) {
+			Integer count = contacts.get(peername);
+			contacts.put(peername, Integer.valueOf(count != null ? count
+					.intValue() + 1 : 1));
+		}
+	}
+
+	/**
+	 * Establishes a pipe in the background to a discovered peer which this
+	 * peer exchanged at least {@link #PREWARM_MIN_CONTACTS} messages with
+	 * lately, so the next message to it is sent without waiting for the pipe.
+	 * At most {@link #MAX_PREWARMS} pipes are established at the same time,
+	 * further peers are skipped until the next discovery.
+	 * 
+	 * @param peername
+	 *            Name of the discovered peer
+	 */
+	private void prewarmPipe(final String peername) {
+		synchronized (contacts) {
+			Integer count = contacts.get(peername);
+			if (count == null || count.intValue() < PREWARM_MIN_CONTACTS)
+				return;
+		}
+
+		if (pipePool.contains(peername) || pendingPipes.containsKey(peername)
+				|| !prewarmBudget.tryAcquire())
+			return;
+
+		try {
+			prewarmExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						PipeAdvertisement peer = getPipeAdvertisementByName(peername);
+						if (peer != null && setupPipe(peer, false) != null)
+							Log.d(JxtaApp.TAG, "Pipe to peer " + peername
+									+ " prewarmed");
+					} finally {
+						prewarmBudget.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// stopped
+			prewarmBudget.release();
+		}
+	}
+
 	/**
 	 * Close a pipe (For reusing hold it open if possible).
 	 * 
@@ -293,29 +1084,36 @@ public class Jxta implements PipeMsgListener {
 	private void closePipe(OutputPipe pipe, PipeAdvertisement peerAdv) {
 		pipe.close();
 
-		// establishedPipes.remove(peerAdv.getName());
+		// pipePool.remove(peerAdv.getName());
 		Log.d(JxtaApp.TAG, "Pipe to peer closed.");
 	}
 
 	/**
-	 * Called for each pipe message event that occurs.
+	 * Called for each pipe message event that occurs, hands the message to the
+	 * {@link MessageDispatcher}. Every message is a sign of life of its sender
+	 * for the {@link LivenessMonitor}.
 	 * 
 	 * @param event
 	 *            The event being received.
 	 */
 	public void pipeMsgEvent(PipeMsgEvent event) {
 		Message msg = event.getMessage();
+		MessageElement from = msg.getMessageElement("From");
+		MessageElement fromName = msg.getMessageElement("FromName");
+		MessageElement type = msg.getMessageElement("Type");
+		String typeName = type != null ? type.toString() : null;
 
-		if (msg.getMessageElement("Type").toString().equals(
-				MessageType.TEXT.toString())) {
-			textTransferService.receiveText(this, msg);
-		} else if (msg.getMessageElement("Type").toString().equals(
-				MessageType.FILE.toString())) {
-			fileTransferService.receiveFilePackage(this, msg);
-		} else {
-			Log.d(JxtaApp.TAG, "No Service for this message type \""
-					+ msg.getMessageElement("Type").toString() + "\"!");
+		if (fromName != null) {
+			// pings are no conversation
+			boolean conversation = !MessageType.PING.toString().equals(
+					typeName)
+					&& !MessageType.PONG.toString().equals(typeName);
+			livenessMonitor.heard(fromName.toString(), from != null ? from
+					.toString() : null, conversation);
+			if (conversation)
+				recordContact(fromName.toString());
 		}
+		messageDispatcher.dispatch(msg);
 	}
 
 	private void waitForQuit() {
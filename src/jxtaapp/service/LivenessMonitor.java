@@ -0,0 +1,346 @@
+package jxtaapp.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jxtaapp.ui.JxtaApp;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessageElement;
+import net.jxta.endpoint.StringMessageElement;
+import net.jxta.pipe.OutputPipe;
+import android.util.Log;
+
+/**
+ * Detects dead pipes of the {@link PipePool}. A pipe can look open while the
+ * peer behind it is long gone, and messages sent to it just vanish. A pooled
+ * pipe to a peer which was silent for its ping interval gets a
+ * {@link Jxta.MessageType#PING} message ("Type", "From", "FromName" and
+ * "PingId"), which the peer answers with a {@link Jxta.MessageType#PONG}
+ * carrying the same "PingId". Any message from the peer counts as an answer,
+ * so busy pipes are not probed.
+ * <p>
+ * The ping interval starts at {@link #MIN_PING_INTERVAL} after the last
+ * conversation with the peer and doubles with every answered ping up to
+ * {@link #MAX_PING_INTERVAL}, so idle pipes cost little. A ping is missed if
+ * it is not answered within {@link #RTT_FACTOR} times the round trip time to
+ * the peer, but at least {@link #MIN_PING_TIMEOUT}; a missed ping is repeated
+ * at once. A peer which answered pings before and misses
+ * {@link #MAX_MISSED_PINGS} of them in a row is reported to
+ * {@link Jxta#pipeDied(String, String)}, which evicts the pipe and resolves a
+ * new one. Peers which never answered a ping, e.g. older versions without
+ * this protocol, are never reported. The answers also give a smoothed round
+ * trip time per peer ({@link #getRtt(String)}).
+ */
+public class LivenessMonitor {
+	private final static long PROBE_TICK = 1000;
+	private final static long MIN_PING_INTERVAL = 5 * 1000;
+	private final static long MAX_PING_INTERVAL = 60 * 1000;
+	private final static long MIN_PING_TIMEOUT = 2 * 1000;
+	private final static long DEFAULT_PING_TIMEOUT = 5 * 1000;
+	private final static int RTT_FACTOR = 4;
+	private final static int MAX_MISSED_PINGS = 3;
+	private final static int MAX_PEERS = 64;
+
+	/**
+	 * Liveness of one peer.
+	 */
+	private static class PeerState {
+		private String peerId = null;
+		private long lastHeard = System.currentTimeMillis();
+		private int pingId = 0;
+		private long pingSentAt = 0;
+		private int missedPings = 0;
+		private boolean answersPings = false;
+		private long rtt = -1;
+		private long pingInterval = MIN_PING_INTERVAL;
+	}
+
+	private Jxta jxtaService;
+	private String peerId;
+	private String instanceName;
+	private Map<String, PeerState> peers;
+	private Timer pingTimer;
+	private AtomicLong pingsSent = new AtomicLong(0);
+	private AtomicLong deadPipes = new AtomicLong(0);
+	private PriorityGate priorityGate = new PriorityGate();
+
+	/**
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object with the pipes to probe
+	 * @param peerId
+	 *            ID of the peer in JXTAs format
+	 * @param instanceName
+	 *            Name of own peer
+	 */
+	public LivenessMonitor(Jxta jxtaService, String peerId,
+			String instanceName) {
+		this.jxtaService = jxtaService;
+		this.peerId = peerId;
+		this.instanceName = instanceName;
+		// access ordered, so the peer heard of least recently is forgotten
+		this.peers = new LinkedHashMap<String, PeerState>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<String, PeerState> eldest) {
+				return size() > MAX_PEERS;
+			}
+		};
+	}
+
+	/**
+	 * @param priorityGate
+	 *            Gate shared with the other services, so pings are not
+	 *            delayed by file chunks
+	 */
+	void setPriorityGate(PriorityGate priorityGate) {
+		this.priorityGate = priorityGate;
+	}
+
+	/**
+	 * Starts the timer which probes the pipes.
+	 */
+	void start() {
+		pingTimer = new Timer("Ping Timer", true);
+		pingTimer.schedule(new TimerTask() {
+			public void run() {
+				probe();
+			}
+		}, PROBE_TICK, PROBE_TICK);
+	}
+
+	public void stop() {
+		if (pingTimer != null)
+			pingTimer.cancel();
+	}
+
+	/**
+	 * Registers the handlers for {@link Jxta.MessageType#PING} and
+	 * {@link Jxta.MessageType#PONG} messages. A ping is answered on a worker
+	 * thread because that may set up a pipe; a pong is handled on the pipe
+	 * listener thread, so its round trip time is not distorted by a queue.
+	 *
+	 * @param dispatcher
+	 *            The dispatcher of the received messages
+	 */
+	public void registerHandlers(MessageDispatcher dispatcher) {
+		dispatcher.register(Jxta.MessageType.PING.toString(),
+				new MessageHandler() {
+					public void handleMessage(Jxta jxtaService, Message msg) {
+						receivePing(jxtaService, msg);
+					}
+				}, Jxta.MessageType.PING.getPriority(), 1, 64);
+		dispatcher.register(Jxta.MessageType.PONG.toString(),
+				new MessageHandler() {
+					public void handleMessage(Jxta jxtaService, Message msg) {
+						receivePong(msg);
+					}
+				}, Jxta.MessageType.PONG.getPriority(), 0, 0);
+	}
+
+	/**
+	 * Called for every message received from a peer, the peer is alive.
+	 *
+	 * @param peername
+	 *            Name of the peer
+	 * @param peerId
+	 *            ID of the peer in JXTAs format, may be null
+	 * @param conversation
+	 *            false for pings and pongs, a conversation resets the ping
+	 *            interval
+	 */
+	synchronized void heard(String peername, String peerId,
+			boolean conversation) {
+		PeerState state = getState(peername);
+		state.lastHeard = System.currentTimeMillis();
+		state.missedPings = 0;
+		if (conversation)
+			state.pingInterval = MIN_PING_INTERVAL;
+		if (peerId != null)
+			state.peerId = peerId;
+	}
+
+	/**
+	 * @param peername
+	 *            Name of the peer
+	 * @return Smoothed round trip time to the peer in milliseconds, -1 if not
+	 *         measured yet
+	 */
+	public synchronized long getRtt(String peername) {
+		PeerState state = peers.get(peername);
+		return state != null ? state.rtt : -1;
+	}
+
+	/**
+	 * @return Number of sent pings
+	 */
+	public long getPingsSent() {
+		return pingsSent.get();
+	}
+
+	/**
+	 * @return Number of pipes found dead
+	 */
+	public long getDeadPipes() {
+		return deadPipes.get();
+	}
+
+	/**
+	 * Answers a ping with a pong.
+	 *
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object for the pipe to the
+	 *            sender
+	 * @param msg
+	 *            The received ping
+	 */
+	public void receivePing(Jxta jxtaService, Message msg) {
+		String fromName = msg.getMessageElement("FromName").toString();
+
+		OutputPipe pipe = jxtaService.getPipeToPeer(fromName);
+		if (pipe == null)
+			return;
+
+		try {
+			send(pipe, createMessage(Jxta.MessageType.PONG, msg
+					.getMessageElement("PingId").toString()));
+		} catch (IOException e) {
+			Log.d(JxtaApp.TAG, "Pong to " + fromName + " failed: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Measures the round trip time of the answered ping and backs off the
+	 * ping interval. Older pings answered late only count as sign of life.
+	 *
+	 * @param msg
+	 *            The received pong
+	 */
+	public void receivePong(Message msg) {
+		String fromName = msg.getMessageElement("FromName").toString();
+		MessageElement pingId = msg.getMessageElement("PingId");
+
+		synchronized (this) {
+			PeerState state = getState(fromName);
+			state.answersPings = true;
+			if (state.pingSentAt == 0 || pingId == null
+					|| !pingId.toString().equals(String.valueOf(state.pingId)))
+				return;
+
+			long rtt = System.currentTimeMillis() - state.pingSentAt;
+			state.rtt = state.rtt < 0 ? rtt : (7 * state.rtt + rtt) / 8;
+			state.pingSentAt = 0;
+			state.pingInterval = Math.min(2 * state.pingInterval,
+					MAX_PING_INTERVAL);
+		}
+	}
+
+	/**
+	 * Pings the pooled pipes to peers which were silent for their ping
+	 * interval or missed a ping and reports the peers which missed too many
+	 * pings, called by the timer.
+	 */
+	private void probe() {
+		Map<String, OutputPipe> pipes = jxtaService.getPipePool().getPipes();
+		Map<OutputPipe, Message> pings = new LinkedHashMap<OutputPipe, Message>(
+				pipes.size());
+		List<String> dead = new ArrayList<String>();
+		List<String> deadPeerIds = new ArrayList<String>();
+		long now = System.currentTimeMillis();
+
+		synchronized (this) {
+			for (Map.Entry<String, OutputPipe> entry : pipes.entrySet()) {
+				PeerState state = getState(entry.getKey());
+				if (state.pingSentAt != 0
+						&& state.lastHeard < state.pingSentAt) {
+					// waiting for an answer
+					if (now - state.pingSentAt < getPingTimeout(state))
+						continue;
+
+					state.pingInterval = MIN_PING_INTERVAL;
+					if (++state.missedPings >= MAX_MISSED_PINGS
+							&& state.answersPings) {
+						// a new pipe gets the full time again
+						state.lastHeard = now;
+						state.pingSentAt = 0;
+						state.missedPings = 0;
+						dead.add(entry.getKey());
+						deadPeerIds.add(state.peerId);
+						continue;
+					}
+				} else if (now - state.lastHeard < state.pingInterval) {
+					continue;
+				}
+
+				state.pingSentAt = now;
+				pings.put(entry.getValue(), createMessage(
+						Jxta.MessageType.PING, String.valueOf(++state.pingId)));
+			}
+		}
+
+		for (Map.Entry<OutputPipe, Message> ping : pings.entrySet()) {
+			try {
+				send(ping.getKey(), ping.getValue());
+				pingsSent.incrementAndGet();
+			} catch (IOException e) {
+				// counts as missed ping
+				Log.d(JxtaApp.TAG, "Ping failed: " + e.getMessage());
+			}
+		}
+
+		for (int i = 0; i < dead.size(); i++) {
+			deadPipes.incrementAndGet();
+			Log.d(JxtaApp.TAG, "Peer " + dead.get(i) + " missed "
+					+ MAX_MISSED_PINGS + " pings, pipe is dead");
+			jxtaService.pipeDied(dead.get(i), deadPeerIds.get(i));
+		}
+	}
+
+	/**
+	 * @return Time to wait for the answer to a ping, derived from the round
+	 *         trip time of the peer. The caller holds the lock.
+	 */
+	private static long getPingTimeout(PeerState state) {
+		if (state.rtt < 0)
+			return DEFAULT_PING_TIMEOUT;
+		return Math.max(MIN_PING_TIMEOUT, RTT_FACTOR * state.rtt);
+	}
+
+	/**
+	 * @return The state of the peer, created if unknown. The caller holds the
+	 *         lock.
+	 */
+	private PeerState getState(String peername) {
+		PeerState state = peers.get(peername);
+		if (state == null) {
+			state = new PeerState();
+			peers.put(peername, state);
+		}
+		return state;
+	}
+
+	private Message createMessage(Jxta.MessageType type, String pingId) {
+		Message msg = new Message();
+		msg.addMessageElement(new StringMessageElement("Type", type.toString(),
+				null));
+		msg.addMessageElement(new StringMessageElement("From", peerId, null));
+		msg.addMessageElement(new StringMessageElement("FromName",
+				instanceName, null));
+		msg.addMessageElement(new StringMessageElement("PingId", pingId, null));
+		return msg;
+	}
+
+	private void send(OutputPipe pipe, Message msg) throws IOException {
+		priorityGate.enter(MessagePriority.CONTROL);
+		try {
+			pipe.send(msg);
+		} finally {
+			priorityGate.exit(MessagePriority.CONTROL);
+		}
+	}
+}
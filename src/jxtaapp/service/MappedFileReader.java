@@ -0,0 +1,80 @@
+package jxtaapp.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads parts of a file for sending without copying them to the heap. The
+ * file is memory mapped in segments of {@link #SEGMENT_SIZE} bytes and every
+ * read returns a slice of the current segment. Only one segment is mapped at
+ * a time; slices which are still referenced by queued messages keep their
+ * segment alive until they are sent. The reader can be shared by several
+ * transfers of the same file.
+ */
+class MappedFileReader {
+	private final static int SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long fileSize;
+	private MappedByteBuffer segment = null;
+	private long segmentOffset = 0;
+
+	/**
+	 * @param file
+	 *            The file to read
+	 * @throws IOException
+	 */
+	public MappedFileReader(File file) throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		fileSize = channel.size();
+	}
+
+	/**
+	 * @return Size of the file when it was opened
+	 */
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * Returns a part of the file. A new segment is mapped if the part is not
+	 * contained in the current one.
+	 * 
+	 * @param offset
+	 *            Position in the file
+	 * @param length
+	 *            Number of bytes
+	 * @return A read only buffer with the part from its position to its limit
+	 * @throws IOException
+	 */
+	public synchronized ByteBuffer read(long offset, int length) throws IOException {
+		if (segment == null || offset < segmentOffset
+				|| offset + length > segmentOffset + segment.capacity()) {
+			long size = Math.max(length, Math.min(SEGMENT_SIZE, fileSize
+					- offset));
+			segment = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+			segmentOffset = offset;
+		}
+
+		ByteBuffer part = segment.duplicate();
+		part.position((int) (offset - segmentOffset));
+		part.limit(part.position() + length);
+		return part.slice();
+	}
+
+	/**
+	 * Closes the file, already returned parts stay valid.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		segment = null;
+		raf.close();
+	}
+}
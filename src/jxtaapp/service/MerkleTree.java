@@ -0,0 +1,62 @@
+package jxtaapp.service;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Root hash over the {@link ChunkStore#HASH_ALGORITHM} hashes of all data
+ * packages of a file (the leaves). Two nodes are combined into
+ * hash(0x01, left, right), a node without a partner is taken over into the
+ * next level unchanged. The root of a file without data packages is the hash
+ * of no data.
+ * <p>
+ * The receiver of a file hashes every package as it arrives (see
+ * {@link IncomingFileTransfer}), so the root of the complete file is
+ * computed from the leaves without reading the file again.
+ */
+class MerkleTree {
+	private final static byte NODE_PREFIX = 0x01;
+
+	/**
+	 * @param leaves
+	 *            Concatenated hashes of the packages
+	 * @return The root hash
+	 */
+	public static byte[] root(byte[] leaves) {
+		MessageDigest digest = createDigest();
+		int size = ChunkStore.HASH_SIZE;
+		int count = leaves.length / size;
+
+		if (count == 0)
+			return digest.digest();
+
+		byte[] level = leaves.clone();
+		while (count > 1) {
+			int parents = (count + 1) / 2;
+			for (int i = 0; i < count / 2; i++) {
+				digest.update(NODE_PREFIX);
+				digest.update(level, 2 * i * size, 2 * size);
+				System.arraycopy(digest.digest(), 0, level, i * size, size);
+			}
+			if (count % 2 == 1)
+				System.arraycopy(level, (count - 1) * size, level,
+						(parents - 1) * size, size);
+			count = parents;
+		}
+
+		byte[] root = new byte[size];
+		System.arraycopy(level, 0, root, 0, size);
+		return root;
+	}
+
+	/**
+	 * @return A new digest for the leaves and nodes
+	 */
+	public static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(ChunkStore.HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
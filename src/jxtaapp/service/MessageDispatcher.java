@@ -0,0 +1,369 @@
+package jxtaapp.service;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jxtaapp.ui.JxtaApp;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessageElement;
+import android.util.Log;
+
+/**
+ * Dispatches received messages by their "Type" element to the
+ * {@link MessageHandler} registered for the type, see
+ * {@link Jxta#getMessageDispatcher()}. The services register their types
+ * themselves, e.g. {@link TextTransfer#registerHandlers(MessageDispatcher)}.
+ * <p>
+ * Every type has its own pool of worker threads and a bounded queue, so a
+ * slow handler only delays the messages of its own type. What happens if the
+ * queue of a type is full depends on the {@link OverflowPolicy} of the
+ * {@link MessagePriority} class of the type: by default control and
+ * interactive messages block the pipe listener thread until there is space
+ * (they are small and must not be lost), bulk messages are dropped and the
+ * sender is told to slow down, so a flood of file data never holds up chat.
+ * A type registered with no threads is always handled on the pipe listener
+ * thread, for handlers which return at once anyway.
+ * <p>
+ * The policies are applied by the {@link RejectedExecutionHandler} of the
+ * worker pools. A message of a type which is unregistered or registered again
+ * while it is dispatched is handled on the pipe listener thread; messages
+ * dropped because the dispatcher is stopped are counted and logged.
+ */
+public class MessageDispatcher {
+	/**
+	 * What to do with a received message if the queue of its type is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Wait until there is space in the queue, this blocks the pipe
+		 * listener thread
+		 */
+		BLOCK,
+		/**
+		 * Drop the oldest waiting message of the type
+		 */
+		DROP_OLDEST,
+		/**
+		 * Drop the message and hand it to the overflow handler of the type,
+		 * which tells the sender to slow down; without overflow handler the
+		 * sender notices the missing answer
+		 */
+		SLOW_DOWN;
+	}
+
+	/**
+	 * Handler, workers and statistics of one message type.
+	 */
+	private static class Registration {
+		private MessageHandler handler;
+		private MessageHandler overflowHandler;
+		private MessagePriority priority;
+		private ThreadPoolExecutor executor;
+		private MessageTypeStats stats;
+
+		private Registration(MessageHandler handler,
+				MessageHandler overflowHandler, MessagePriority priority,
+				ThreadPoolExecutor executor, MessageTypeStats stats) {
+			this.handler = handler;
+			this.overflowHandler = overflowHandler;
+			this.priority = priority;
+			this.executor = executor;
+			this.stats = stats;
+		}
+	}
+
+	/**
+	 * A received message waiting for a worker.
+	 */
+	private class Task implements Runnable {
+		private Registration registration;
+		private Message msg;
+		private long received;
+
+		private Task(Registration registration, Message msg, long received) {
+			this.registration = registration;
+			this.msg = msg;
+			this.received = received;
+		}
+
+		public void run() {
+			handle(registration, msg, received);
+		}
+	}
+
+	/**
+	 * Applies the {@link OverflowPolicy} to a message whose queue is full.
+	 */
+	private class OverflowPolicyHandler implements RejectedExecutionHandler {
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			Task task = (Task) r;
+			Registration registration = task.registration;
+
+			if (executor.isShutdown()) {
+				rejectedAfterShutdown(task);
+				return;
+			}
+
+			switch (getOverflowPolicy(registration.priority)) {
+			case BLOCK:
+				long start = System.currentTimeMillis();
+				try {
+					executor.getQueue().put(task);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					registration.stats.dropped();
+					return;
+				}
+				registration.stats.blocked(System.currentTimeMillis()
+						- start);
+				// shut down while waiting, no worker takes it anymore
+				if (executor.isShutdown() && executor.remove(task))
+					rejectedAfterShutdown(task);
+				break;
+			case DROP_OLDEST:
+				if (executor.getQueue().poll() != null)
+					registration.stats.dropped();
+				executor.execute(task);
+				break;
+			case SLOW_DOWN:
+				registration.stats.dropped();
+				if (registration.overflowHandler != null) {
+					try {
+						registration.overflowHandler.handleMessage(
+								jxtaService, task.msg);
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+				break;
+			}
+		}
+	}
+
+	private Jxta jxtaService;
+	private Map<String, Registration> registrations;
+	private Map<MessagePriority, OverflowPolicy> overflowPolicies;
+	private RejectedExecutionHandler overflowPolicyHandler =
+			new OverflowPolicyHandler();
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object handed to the handlers
+	 */
+	public MessageDispatcher(Jxta jxtaService) {
+		this.jxtaService = jxtaService;
+		this.registrations = new ConcurrentHashMap<String, Registration>();
+		this.overflowPolicies = new EnumMap<MessagePriority, OverflowPolicy>(
+				MessagePriority.class);
+
+		overflowPolicies.put(MessagePriority.CONTROL, OverflowPolicy.BLOCK);
+		overflowPolicies.put(MessagePriority.INTERACTIVE, OverflowPolicy.BLOCK);
+		overflowPolicies.put(MessagePriority.BULK, OverflowPolicy.SLOW_DOWN);
+	}
+
+	/**
+	 * @param priority
+	 *            A priority class
+	 * @param policy
+	 *            What to do with a received message of the class if the queue
+	 *            of its type is full
+	 */
+	public void setOverflowPolicy(MessagePriority priority,
+			OverflowPolicy policy) {
+		synchronized (overflowPolicies) {
+			overflowPolicies.put(priority, policy);
+		}
+	}
+
+	public OverflowPolicy getOverflowPolicy(MessagePriority priority) {
+		synchronized (overflowPolicies) {
+			return overflowPolicies.get(priority);
+		}
+	}
+
+	/**
+	 * Registers the handler of a message type without overflow handler, see
+	 * {@link #register(String, MessageHandler, MessageHandler, MessagePriority, int, int)}.
+	 */
+	public void register(String type, MessageHandler handler,
+			MessagePriority priority, int threads, int queueCapacity) {
+		register(type, handler, null, priority, threads, queueCapacity);
+	}
+
+	/**
+	 * Registers the handler of a message type, replaces an earlier handler of
+	 * the type.
+	 *
+	 * @param type
+	 *            Value of the "Type" element of the messages
+	 * @param handler
+	 *            The handler
+	 * @param overflowHandler
+	 *            Called on the pipe listener thread for a message dropped by
+	 *            {@link OverflowPolicy#SLOW_DOWN}, may be null
+	 * @param priority
+	 *            Priority class of the type
+	 * @param threads
+	 *            Number of worker threads, 1 keeps the messages in order, 0
+	 *            handles them on the pipe listener thread
+	 * @param queueCapacity
+	 *            Number of messages which may wait for a worker
+	 */
+	public void register(final String type, MessageHandler handler,
+			MessageHandler overflowHandler, MessagePriority priority,
+			int threads, int queueCapacity) {
+		ThreadPoolExecutor executor = null;
+
+		if (threads > 0) {
+			executor = new ThreadPoolExecutor(threads, threads, 0,
+					TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+							queueCapacity), new ThreadFactory() {
+						private int count = 0;
+
+						public synchronized Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, type + " Handler "
+									+ ++count);
+							thread.setDaemon(true);
+							return thread;
+						}
+					}, overflowPolicyHandler);
+			executor.prestartAllCoreThreads();
+		}
+
+		Registration old = registrations.put(type, new Registration(handler,
+				overflowHandler, priority, executor, new MessageTypeStats(
+						type, priority)));
+		if (old != null && old.executor != null)
+			old.executor.shutdown();
+	}
+
+	/**
+	 * Removes the handler of a message type, queued messages of the type are
+	 * still handled.
+	 *
+	 * @param type
+	 *            Value of the "Type" element of the messages
+	 */
+	public void unregister(String type) {
+		Registration old = registrations.remove(type);
+		if (old != null && old.executor != null)
+			old.executor.shutdown();
+	}
+
+	/**
+	 * Stops the worker threads of all types, queued messages are dropped.
+	 */
+	public void stop() {
+		stopped = true;
+		for (Registration registration : registrations.values()) {
+			if (registration.executor == null)
+				continue;
+
+			int dropped = registration.executor.shutdownNow().size();
+			for (int i = 0; i < dropped; i++)
+				registration.stats.dropped();
+			if (dropped > 0)
+				Log.d(JxtaApp.TAG, dropped + " queued messages of type \""
+						+ registration.stats.getType() + "\" dropped");
+		}
+	}
+
+	/**
+	 * Hands a received message to the handler of its type, called by the pipe
+	 * listener thread.
+	 *
+	 * @param msg
+	 *            The received message
+	 */
+	public void dispatch(Message msg) {
+		MessageElement typeElement = msg.getMessageElement("Type");
+		String type = typeElement != null ? typeElement.toString() : null;
+		Registration registration = type != null ? registrations
+				.get(type) : null;
+
+		if (registration == null) {
+			Log.d(JxtaApp.TAG, "No Service for this message type \"" + type
+					+ "\"!");
+			return;
+		}
+
+		long received = System.currentTimeMillis();
+
+		if (registration.executor == null) {
+			handle(registration, msg, received);
+			return;
+		}
+
+		registration.executor.execute(new Task(registration, msg, received));
+	}
+
+	/**
+	 * @return Statistics of all registered message types
+	 */
+	public List<MessageTypeStats> getStats() {
+		List<MessageTypeStats> stats = new ArrayList<MessageTypeStats>();
+		for (Registration registration : registrations.values())
+			stats.add(registration.stats);
+		return stats;
+	}
+
+	/**
+	 * @param type
+	 *            Value of the "Type" element of the messages
+	 * @return Statistics of the message type, null if it is not registered
+	 */
+	public MessageTypeStats getStats(String type) {
+		Registration registration = registrations.get(type);
+		return registration != null ? registration.stats : null;
+	}
+
+	/**
+	 * @return Number of messages of the type waiting for a worker
+	 */
+	public int getQueueDepth(String type) {
+		Registration registration = registrations.get(type);
+		if (registration == null || registration.executor == null)
+			return 0;
+		return registration.executor.getQueue().size();
+	}
+
+	/**
+	 * Handles a message whose executor is shut down: on the calling thread if
+	 * only its registration was replaced or removed, otherwise it is dropped.
+	 */
+	private void rejectedAfterShutdown(Task task) {
+		if (!stopped) {
+			task.run();
+			return;
+		}
+
+		task.registration.stats.dropped();
+		Log.d(JxtaApp.TAG, "Message of type \""
+				+ task.registration.stats.getType()
+				+ "\" dropped, dispatcher is stopped");
+	}
+
+	private void handle(Registration registration, Message msg,
+			long received) {
+		boolean successful = false;
+
+		try {
+			registration.handler.handleMessage(jxtaService, msg);
+			successful = true;
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		} finally {
+			registration.stats.handled(System.currentTimeMillis() - received,
+					successful);
+		}
+	}
+}
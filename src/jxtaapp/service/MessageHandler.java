@@ -0,0 +1,17 @@
+package jxtaapp.service;
+
+import net.jxta.endpoint.Message;
+
+/**
+ * Handler for the received messages of one type, see
+ * {@link MessageDispatcher#register(String, MessageHandler, MessagePriority, int, int)}.
+ */
+public interface MessageHandler {
+	/**
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object
+	 * @param msg
+	 *            The received message
+	 */
+	public void handleMessage(Jxta jxtaService, Message msg);
+}
@@ -0,0 +1,24 @@
+package jxtaapp.service;
+
+/**
+ * Priority classes of the messages, see {@link Jxta.MessageType#getPriority()}.
+ * Received messages of a class are queued with the overflow policy of the
+ * class ({@link MessageDispatcher#setOverflowPolicy(MessagePriority,
+ * MessageDispatcher.OverflowPolicy)}), sent messages of a higher class go
+ * before bulk data ({@link PriorityGate}), so chat stays responsive while a
+ * large file is transferred.
+ */
+public enum MessagePriority {
+	/**
+	 * Small protocol messages, e.g. acknowledgements and offers
+	 */
+	CONTROL,
+	/**
+	 * Messages a user waits for, e.g. chat
+	 */
+	INTERACTIVE,
+	/**
+	 * File data and requests for it
+	 */
+	BULK;
+}
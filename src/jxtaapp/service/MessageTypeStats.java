@@ -0,0 +1,148 @@
+package jxtaapp.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics of the received messages of one type (see
+ * {@link MessageDispatcher#getStats()}): counters and a histogram of the
+ * latency from the arrival of a message until its handler returned, which
+ * includes the time the message waited for a worker.
+ */
+public class MessageTypeStats {
+	/**
+	 * Upper bounds of the latency histogram buckets in milliseconds, the last
+	 * bucket takes all longer latencies.
+	 */
+	private final static long[] LATENCY_BUCKETS = { 1, 2, 5, 10, 20, 50, 100,
+			200, 500, 1000, 5000 };
+
+	private String type;
+	private MessagePriority priority;
+	private AtomicLong handled = new AtomicLong(0);
+	private AtomicLong failed = new AtomicLong(0);
+	private AtomicLong dropped = new AtomicLong(0);
+	private AtomicLong blocked = new AtomicLong(0);
+	private AtomicLong blockedTime = new AtomicLong(0);
+	private AtomicLong totalLatency = new AtomicLong(0);
+	private AtomicLong maxLatency = new AtomicLong(0);
+	private AtomicLongArray histogram = new AtomicLongArray(
+			LATENCY_BUCKETS.length + 1);
+
+	MessageTypeStats(String type, MessagePriority priority) {
+		this.type = type;
+		this.priority = priority;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public MessagePriority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @return Number of handled messages, including failed ones
+	 */
+	public long getHandled() {
+		return handled.get();
+	}
+
+	/**
+	 * @return Number of messages whose handler threw an exception
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return Number of messages dropped because the queue of the type was
+	 *         full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return Number of times the pipe listener thread waited for space in
+	 *         the full queue of the type
+	 */
+	public long getBlocked() {
+		return blocked.get();
+	}
+
+	/**
+	 * @return Milliseconds the pipe listener thread waited for space in the
+	 *         full queue of the type
+	 */
+	public long getBlockedTime() {
+		return blockedTime.get();
+	}
+
+	/**
+	 * @return Average latency in milliseconds, 0 if there is no message yet
+	 */
+	public long getAverageLatency() {
+		long count = handled.get();
+		return count > 0 ? totalLatency.get() / count : 0;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+
+	/**
+	 * @return Upper bounds of the histogram buckets in milliseconds, see
+	 *         {@link #getLatencyHistogram()}
+	 */
+	public static long[] getLatencyBuckets() {
+		return LATENCY_BUCKETS.clone();
+	}
+
+	/**
+	 * @return Number of messages per latency bucket, one more bucket than
+	 *         {@link #getLatencyBuckets()} for the longer latencies
+	 */
+	public long[] getLatencyHistogram() {
+		long[] counts = new long[histogram.length()];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = histogram.get(i);
+		return counts;
+	}
+
+	void dropped() {
+		dropped.incrementAndGet();
+	}
+
+	void blocked(long time) {
+		blocked.incrementAndGet();
+		blockedTime.addAndGet(time);
+	}
+
+	void handled(long latency, boolean successful) {
+		handled.incrementAndGet();
+		if (!successful)
+			failed.incrementAndGet();
+
+		totalLatency.addAndGet(latency);
+		for (;;) {
+			long max = maxLatency.get();
+			if (latency <= max || maxLatency.compareAndSet(max, latency))
+				break;
+		}
+
+		int bucket = 0;
+		while (bucket < LATENCY_BUCKETS.length
+				&& latency >= LATENCY_BUCKETS[bucket])
+			bucket++;
+		histogram.incrementAndGet(bucket);
+	}
+
+	public String toString() {
+		return type + " (" + priority + "): " + handled.get() + " handled, "
+				+ failed.get() + " failed, " + dropped.get() + " dropped, "
+				+ blocked.get() + " blocked, average "
+				+ getAverageLatency() + " ms, max " + maxLatency.get() + " ms";
+	}
+}
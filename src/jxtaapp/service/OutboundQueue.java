@@ -0,0 +1,497 @@
+package jxtaapp.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jxtaapp.ui.JxtaApp;
+import android.util.Log;
+
+/**
+ * Store and forward queue for messages to peers which are not reachable at the
+ * moment (see {@link Jxta#sendMsgToPeer(String, String, Jxta.MessageType)}).
+ * The messages of a peer are delivered in order as soon as the peer is
+ * discovered again.
+ * <p>
+ * Every peer has an append-only log file in the queue directory with two kinds
+ * of records: a queued message (byte {@link #RECORD_MESSAGE}, long id, UTF
+ * message type, int length, UTF-8 content) and the delivery of a message (byte
+ * {@link #RECORD_DELIVERED}, long id). Reading the log again yields the
+ * messages which are queued but not delivered.
+ * <p>
+ * Records are not written by the caller but by a committer thread: it takes
+ * all records which arrived since its last write, appends them with one write
+ * and one sync per log file and then wakes up the callers of
+ * {@link #add(String, String, Jxta.MessageType)} (group commit). So a burst of
+ * queued messages costs a few disk syncs instead of one per message.
+ * Deliveries are not waited for; after a crash a message may be delivered a
+ * second time, but it is never lost.
+ */
+class OutboundQueue {
+	private final static byte RECORD_MESSAGE = 1;
+	private final static byte RECORD_DELIVERED = 2;
+	private final static String LOG_SUFFIX = ".log";
+	private final static int MAX_DELIVERED_RECORDS = 256;
+
+	/**
+	 * A queued message.
+	 */
+	static class OutboundMessage {
+		private long id;
+		private Jxta.MessageType type;
+		private String message;
+
+		private OutboundMessage(long id, Jxta.MessageType type, String message) {
+			this.id = id;
+			this.type = type;
+			this.message = message;
+		}
+
+		public Jxta.MessageType getType() {
+			return type;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	/**
+	 * Queued messages and log file of one peer.
+	 */
+	private static class PeerQueue {
+		private File log;
+		private LinkedHashMap<Long, OutboundMessage> messages = new LinkedHashMap<Long, OutboundMessage>();
+		private long nextId = 1;
+		private int deliveredRecords = 0;
+
+		private PeerQueue(File log) {
+			this.log = log;
+		}
+	}
+
+	/**
+	 * A record waiting for the committer thread.
+	 */
+	private static class Record {
+		private PeerQueue queue;
+		private byte[] content;
+
+		private Record(PeerQueue queue, byte[] content) {
+			this.queue = queue;
+			this.content = content;
+		}
+	}
+
+	private File directory;
+	private Map<String, PeerQueue> queues;
+	private List<Record> uncommitted;
+	private long appendedRecords = 0;
+	private long committedRecords = 0;
+	private boolean stopped = false;
+	private Thread committer;
+
+	/**
+	 * Loads the logs in the directory and starts the committer thread.
+	 *
+	 * @param directory
+	 *            Directory of the log files, created if it does not exist
+	 */
+	public OutboundQueue(File directory) {
+		this.directory = directory;
+		this.queues = new HashMap<String, PeerQueue>();
+		this.uncommitted = new ArrayList<Record>();
+
+		directory.mkdirs();
+		load();
+
+		committer = new Thread(new Runnable() {
+			public void run() {
+				commit();
+			}
+		}, "Outbound Queue Committer");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Writes the records which are not committed yet and stops the committer
+	 * thread.
+	 */
+	public void stop() {
+		synchronized (this) {
+			stopped = true;
+			notifyAll();
+		}
+
+		try {
+			committer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Queues a message and blocks until it is written to the log.
+	 *
+	 * @param peername
+	 *            Name of the receiving peer
+	 * @param message
+	 *            The message content
+	 * @param type
+	 *            The {@link Jxta.MessageType}
+	 * @throws IOException
+	 *             If the queue is stopped
+	 */
+	public void add(String peername, String message, Jxta.MessageType type)
+			throws IOException {
+		long record;
+
+		synchronized (this) {
+			if (stopped)
+				throw new IOException("Outbound queue is stopped");
+
+			PeerQueue queue = getQueue(peername);
+			OutboundMessage outboundMessage = new OutboundMessage(
+					queue.nextId++, type, message);
+			queue.messages.put(outboundMessage.id, outboundMessage);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			writeMessage(out, outboundMessage);
+			out.flush();
+			record = append(new Record(queue, bytes.toByteArray()));
+
+			while (committedRecords < record && !stopped) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+
+		Log.d(JxtaApp.TAG, "Message to " + peername
+				+ " queued for later delivery");
+	}
+
+	/**
+	 * @param peername
+	 *            Name of the peer
+	 * @return true if there are queued messages for the peer
+	 */
+	public synchronized boolean hasPending(String peername) {
+		PeerQueue queue = queues.get(peername);
+		return queue != null && !queue.messages.isEmpty();
+	}
+
+	/**
+	 * @param peername
+	 *            Name of the peer
+	 * @return Number of queued messages for the peer
+	 */
+	public synchronized int getPendingCount(String peername) {
+		PeerQueue queue = queues.get(peername);
+		return queue != null ? queue.messages.size() : 0;
+	}
+
+	/**
+	 * @param peername
+	 *            Name of the peer
+	 * @return The oldest queued message for the peer or null if there is none
+	 */
+	public synchronized OutboundMessage peek(String peername) {
+		PeerQueue queue = queues.get(peername);
+		if (queue == null || queue.messages.isEmpty())
+			return null;
+
+		return queue.messages.values().iterator().next();
+	}
+
+	/**
+	 * Removes a delivered message from the queue, returns at once.
+	 *
+	 * @param peername
+	 *            Name of the peer
+	 * @param message
+	 *            The delivered message, see {@link #peek(String)}
+	 */
+	public synchronized void delivered(String peername, OutboundMessage message) {
+		PeerQueue queue = queues.get(peername);
+		if (queue == null || queue.messages.remove(message.id) == null)
+			return;
+
+		byte[] record = new byte[9];
+		record[0] = RECORD_DELIVERED;
+		for (int i = 0; i < 8; i++)
+			record[1 + i] = (byte) (message.id >>> (56 - 8 * i));
+
+		queue.deliveredRecords++;
+		append(new Record(queue, record));
+	}
+
+	private PeerQueue getQueue(String peername) {
+		PeerQueue queue = queues.get(peername);
+		if (queue == null) {
+			try {
+				queue = new PeerQueue(new File(directory, URLEncoder.encode(
+						peername, "UTF-8")
+						+ LOG_SUFFIX));
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			queues.put(peername, queue);
+		}
+		return queue;
+	}
+
+	/**
+	 * Hands a record over to the committer thread, the caller holds the lock.
+	 *
+	 * @return Number of the record, it is written when
+	 *         {@link #committedRecords} reaches it
+	 */
+	private long append(Record record) {
+		uncommitted.add(record);
+		notifyAll();
+		return ++appendedRecords;
+	}
+
+	/**
+	 * Main loop of the committer thread: writes all records which arrived
+	 * while the previous batch was written, one write and sync per log file.
+	 */
+	private void commit() {
+		while (true) {
+			List<Record> batch;
+			long batchEnd;
+
+			synchronized (this) {
+				while (uncommitted.isEmpty() && !stopped) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (uncommitted.isEmpty())
+					return;
+
+				batch = uncommitted;
+				batchEnd = appendedRecords;
+				uncommitted = new ArrayList<Record>();
+			}
+
+			Map<PeerQueue, ByteArrayOutputStream> logs = new LinkedHashMap<PeerQueue, ByteArrayOutputStream>();
+			for (Record record : batch) {
+				ByteArrayOutputStream bytes = logs.get(record.queue);
+				if (bytes == null) {
+					bytes = new ByteArrayOutputStream();
+					logs.put(record.queue, bytes);
+				}
+				bytes.write(record.content, 0, record.content.length);
+			}
+
+			for (Map.Entry<PeerQueue, ByteArrayOutputStream> entry : logs
+					.entrySet()) {
+				write(entry.getKey().log, entry.getValue().toByteArray(), true);
+				shrink(entry.getKey());
+			}
+
+			synchronized (this) {
+				committedRecords = batchEnd;
+				notifyAll();
+			}
+
+			Log.d(JxtaApp.TAG, "Outbound queue committed " + batch.size()
+					+ " records");
+		}
+	}
+
+	/**
+	 * Deletes the log of an empty queue and rewrites a log with too many
+	 * delivered messages, called by the committer thread only. Rewriting the
+	 * log while records of the queue wait for the next batch is safe, a
+	 * message record whose id is already in the log is skipped by
+	 * {@link #load()}.
+	 */
+	private void shrink(PeerQueue queue) {
+		byte[] content = null;
+
+		synchronized (this) {
+			if (queue.messages.isEmpty()) {
+				if (!queue.log.delete())
+					Log.d(JxtaApp.TAG, "Cannot delete " + queue.log);
+				queue.deliveredRecords = 0;
+			} else if (queue.deliveredRecords > MAX_DELIVERED_RECORDS) {
+				content = toLog(queue);
+				queue.deliveredRecords = 0;
+			}
+		}
+
+		if (content != null) {
+			File tmp = new File(queue.log.getPath() + ".tmp");
+			if (write(tmp, content, false) && !tmp.renameTo(queue.log))
+				Log.d(JxtaApp.TAG, "Cannot replace " + queue.log);
+		}
+	}
+
+	/**
+	 * @return The queued messages of the queue as log records
+	 */
+	private byte[] toLog(PeerQueue queue) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		try {
+			for (OutboundMessage message : queue.messages.values())
+				writeMessage(out, message);
+			out.flush();
+		} catch (IOException e) {
+			// not thrown by a ByteArrayOutputStream
+			e.printStackTrace();
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private void writeMessage(DataOutputStream out, OutboundMessage message)
+			throws IOException {
+		byte[] content = message.message.getBytes("UTF-8");
+
+		out.writeByte(RECORD_MESSAGE);
+		out.writeLong(message.id);
+		out.writeUTF(message.type.name());
+		out.writeInt(content.length);
+		out.write(content);
+	}
+
+	/**
+	 * Writes and syncs the content to a file.
+	 *
+	 * @return false on error
+	 */
+	private boolean write(File file, byte[] content, boolean append) {
+		FileOutputStream out = null;
+
+		try {
+			out = new FileOutputStream(file, append);
+			out.write(content);
+			out.getFD().sync();
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			try {
+				if (out != null)
+					out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Reads all logs of the directory. A log whose last record is incomplete,
+	 * e.g. after a crash, is rewritten with the records read.
+	 */
+	private void load() {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+
+		for (File file : files) {
+			if (!file.getName().endsWith(LOG_SUFFIX))
+				continue;
+
+			String peername;
+			try {
+				peername = URLDecoder.decode(file.getName().substring(0,
+						file.getName().length() - LOG_SUFFIX.length()), "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+
+			PeerQueue queue = getQueue(peername);
+			if (!load(queue)) {
+				Log.d(JxtaApp.TAG, "Log " + file + " is damaged, rewrite it");
+				write(queue.log, toLog(queue), false);
+			}
+
+			if (queue.messages.isEmpty())
+				queue.log.delete();
+			else
+				Log.d(JxtaApp.TAG, queue.messages.size()
+						+ " queued messages for " + peername);
+		}
+	}
+
+	/**
+	 * @return false if the log ends with an incomplete record
+	 */
+	private boolean load(PeerQueue queue) {
+		DataInputStream in = null;
+		boolean complete = true;
+
+		try {
+			in = new DataInputStream(new FileInputStream(queue.log));
+			while (true) {
+				byte recordType = in.readByte();
+				complete = false;
+				long id = in.readLong();
+
+				if (recordType == RECORD_MESSAGE) {
+					Jxta.MessageType type = Jxta.MessageType.valueOf(in
+							.readUTF());
+					int length = in.readInt();
+					if (length < 0 || length > queue.log.length())
+						break;
+					byte[] content = new byte[length];
+					in.readFully(content);
+					if (id >= queue.nextId) {
+						queue.messages.put(id, new OutboundMessage(id, type,
+								new String(content, "UTF-8")));
+						queue.nextId = id + 1;
+					}
+				} else if (recordType == RECORD_DELIVERED) {
+					queue.messages.remove(id);
+				} else {
+					break;
+				}
+				complete = true;
+			}
+		} catch (EOFException e) {
+			// end of log
+		} catch (IOException e) {
+			e.printStackTrace();
+			complete = false;
+		} catch (IllegalArgumentException e) {
+			// unknown message type
+			complete = false;
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		return complete;
+	}
+}
@@ -0,0 +1,461 @@
+package jxtaapp.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sender side state of one windowed file transfer (see {@link FileTransfer}).
+ * It keeps track of the chunks which are sent but not yet acknowledged by the
+ * receiver, so the sender can keep a fixed number of chunks in flight and
+ * retransmit only the chunks whose acknowledgement timed out.
+ * <p>
+ * Packages are numbered from 1 to {@link #getPackageCount()}, the last package
+ * is the empty end of file package. A chunk is a run of consecutive packages
+ * sent in one message and is identified by its first package; its size is
+ * chosen by the {@link ChunkSizeController} of the receiving peer.
+ * <p>
+ * A receiver whose queue is full drops a chunk and asks the sender to slow
+ * down ({@link #slowDown(int, long)}): the number of chunks in flight is
+ * halved and grows again by one for every window of acknowledged chunks, and
+ * the dropped chunk is sent again after a delay without counting as a
+ * retransmission.
+ */
+class OutgoingFileTransfer {
+	private int packageCount;
+	private int packageSize;
+	private long fileSize;
+	private ChunkSizeController chunkSizeController;
+	private ChunkCompressor chunkCompressor = null;
+	private int transferId = 0;
+	private int chunkHeaderVersion = 0;
+	private TransferStats stats = null;
+	private boolean[] acknowledged;
+	private boolean[] credited;
+	private int acknowledgedCount = 0;
+	private int[] chunkPackages;
+	private int[] retransmissions;
+	private Map<Integer, Long> inFlight;
+	private Map<Integer, Long> deferred;
+	private int maxWindow;
+	private int window;
+	private int windowAcks = 0;
+	private long lastSlowDown = 0;
+	private boolean aborted = false;
+	private boolean offerAnswered = false;
+	private String streamPeerId = null;
+
+	/**
+	 * @param packageCount
+	 *            Number of packages of the transfer including the end of file
+	 *            package
+	 * @param packageSize
+	 *            Size of a package in bytes
+	 * @param fileSize
+	 *            Size of the file in bytes
+	 * @param windowSize
+	 *            Maximum number of chunks in flight
+	 * @param chunkSizeController
+	 *            Chunk size and round trip time measurement of the receiver
+	 */
+	public OutgoingFileTransfer(int packageCount, int packageSize,
+			long fileSize, int windowSize,
+			ChunkSizeController chunkSizeController) {
+		this.packageCount = packageCount;
+		this.packageSize = packageSize;
+		this.fileSize = fileSize;
+		this.maxWindow = windowSize;
+		this.window = windowSize;
+		this.chunkSizeController = chunkSizeController;
+		this.acknowledged = new boolean[packageCount];
+		this.credited = new boolean[packageCount];
+		this.chunkPackages = new int[packageCount];
+		this.retransmissions = new int[packageCount];
+		// insertion order = send order, so the oldest chunk comes first
+		this.inFlight = new LinkedHashMap<Integer, Long>();
+		this.deferred = new LinkedHashMap<Integer, Long>();
+	}
+
+	public int getPackageCount() {
+		return packageCount;
+	}
+
+	public ChunkSizeController getChunkSizeController() {
+		return chunkSizeController;
+	}
+
+	/**
+	 * @return Compressor for the chunks or null if they are sent uncompressed
+	 */
+	public ChunkCompressor getChunkCompressor() {
+		return chunkCompressor;
+	}
+
+	public void setChunkCompressor(ChunkCompressor chunkCompressor) {
+		this.chunkCompressor = chunkCompressor;
+	}
+
+	/**
+	 * @return Statistics of the transfer
+	 */
+	public TransferStats getStats() {
+		return stats;
+	}
+
+	public void setStats(TransferStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * @return Id of the transfer announced in the offer, 0 if none
+	 */
+	public int getTransferId() {
+		return transferId;
+	}
+
+	public void setTransferId(int transferId) {
+		this.transferId = transferId;
+	}
+
+	/**
+	 * @return Version of the {@link ChunkHeader}s the receiver understands,
+	 *         0 if none
+	 */
+	public synchronized int getChunkHeaderVersion() {
+		return chunkHeaderVersion;
+	}
+
+	public synchronized void setChunkHeaderVersion(int chunkHeaderVersion) {
+		this.chunkHeaderVersion = chunkHeaderVersion;
+	}
+
+	/**
+	 * @return Peer ID of the receiver if it accepted a stream for the
+	 *         packages, otherwise null
+	 */
+	public synchronized String getStreamPeerId() {
+		return streamPeerId;
+	}
+
+	public synchronized void setStreamPeerId(String streamPeerId) {
+		this.streamPeerId = streamPeerId;
+	}
+
+	/**
+	 * @return Number of chunks which may be in flight now, at most the window
+	 *         size given to the constructor
+	 */
+	public synchronized int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Determines the packages of a new chunk: up to the current chunk size of
+	 * consecutive, not acknowledged packages. The end of file package is
+	 * always a chunk of its own.
+	 *
+	 * @param packageNo
+	 *            First package of the chunk
+	 * @return Number of packages of the chunk
+	 */
+	public synchronized int nextChunk(int packageNo) {
+		if (packageNo == packageCount)
+			return 1;
+
+		int maxPackages = chunkSizeController.getChunkPackages();
+		int packages = 1;
+		while (packages < maxPackages && packageNo + packages < packageCount
+				&& !acknowledged[packageNo + packages - 1])
+			packages++;
+
+		return packages;
+	}
+
+	/**
+	 * @param packageNo
+	 *            First package of a sent chunk
+	 * @return Number of packages of the chunk
+	 */
+	public synchronized int getChunkPackages(int packageNo) {
+		return chunkPackages[packageNo - 1];
+	}
+
+	/**
+	 * Marks a chunk as sent (again) at the current time.
+	 *
+	 * @param packageNo
+	 *            First package of the chunk
+	 * @param packages
+	 *            Number of packages of the chunk
+	 */
+	public synchronized void sent(int packageNo, int packages) {
+		chunkPackages[packageNo - 1] = packages;
+		deferred.remove(packageNo);
+		inFlight.remove(packageNo);
+		inFlight.put(packageNo, System.currentTimeMillis());
+	}
+
+	/**
+	 * Called for every acknowledgement of the receiver, wakes up the waiting
+	 * sender.
+	 *
+	 * @param packageNo
+	 *            First package of the acknowledged chunk
+	 */
+	public synchronized void acknowledge(int packageNo) {
+		if (packageNo < 1 || packageNo > packageCount)
+			return;
+
+		Long sentAt = inFlight.remove(packageNo);
+		deferred.remove(packageNo);
+		int packages = Math.max(1, chunkPackages[packageNo - 1]);
+		for (int i = packageNo; i < packageNo + packages; i++)
+			markAcknowledged(i);
+
+		if (sentAt != null) {
+			long offset = (long) (packageNo - 1) * packageSize;
+			long bytes = Math.max(0, Math.min((long) packages * packageSize,
+					fileSize - offset));
+			long rtt = -1;
+			if (retransmissions[packageNo - 1] == 0)
+				rtt = System.currentTimeMillis() - sentAt.longValue();
+			chunkSizeController.acknowledged(bytes, rtt);
+
+			if (window < maxWindow && ++windowAcks >= window) {
+				window++;
+				windowAcks = 0;
+			}
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Called if the receiver got a damaged chunk, the chunk counts as expired
+	 * and is sent again at once.
+	 *
+	 * @param packageNo
+	 *            First package of the chunk
+	 */
+	public synchronized void resend(int packageNo) {
+		if (inFlight.containsKey(packageNo)) {
+			inFlight.put(packageNo, 0L);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Called if the receiver dropped a chunk because it cannot keep up. The
+	 * window and the chunk size shrink, at most once per delay, and the chunk
+	 * is sent again after the delay.
+	 *
+	 * @param packageNo
+	 *            First package of the dropped chunk
+	 * @param delay
+	 *            Time to wait before the chunk is sent again in milliseconds
+	 */
+	public synchronized void slowDown(int packageNo, long delay) {
+		if (inFlight.remove(packageNo) == null)
+			return;
+
+		long now = System.currentTimeMillis();
+		deferred.put(packageNo, now + delay);
+
+		if (now - lastSlowDown >= delay) {
+			lastSlowDown = now;
+			window = Math.max(1, window / 2);
+			windowAcks = 0;
+			chunkSizeController.lost();
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Called for the answer of the receiver to the offer of the transfer,
+	 * acknowledges all packages the receiver already has from an earlier
+	 * attempt.
+	 *
+	 * @param bitmap
+	 *            Bitmap of the received packages, bit 0 of the first byte is
+	 *            package 1
+	 */
+	public synchronized void acknowledge(byte[] bitmap) {
+		for (int i = 0; i < packageCount; i++) {
+			if (i / 8 < bitmap.length && (bitmap[i / 8] & (1 << (i % 8))) != 0)
+				markAcknowledged(i + 1);
+			else if (credited[i] && !acknowledged[i])
+				// streamed, but lost on the way
+				credit(i + 1, false);
+		}
+
+		offerAnswered = true;
+		notifyAll();
+	}
+
+	/**
+	 * Counts streamed packages as done in the statistics before the receiver
+	 * acknowledges them, packages missing in its final bitmap are taken back
+	 * by {@link #acknowledge(byte[])}.
+	 *
+	 * @param packageNo
+	 *            First package of the streamed chunk
+	 * @param packages
+	 *            Number of packages of the chunk
+	 */
+	public synchronized void streamed(int packageNo, int packages) {
+		for (int i = packageNo; i < packageNo + packages; i++)
+			credit(i, true);
+	}
+
+	private void markAcknowledged(int packageNo) {
+		if (acknowledged[packageNo - 1])
+			return;
+
+		acknowledged[packageNo - 1] = true;
+		acknowledgedCount++;
+		credit(packageNo, true);
+	}
+
+	/**
+	 * Adds the bytes of a data package to the statistics or takes them back,
+	 * every package counts once.
+	 */
+	private void credit(int packageNo, boolean done) {
+		if (packageNo < 1 || packageNo >= packageCount
+				|| credited[packageNo - 1] == done)
+			return;
+
+		credited[packageNo - 1] = done;
+		if (stats != null) {
+			long bytes = Math.min(packageSize, fileSize - (long) (packageNo - 1)
+					* packageSize);
+			stats.addBytes(done ? bytes : -bytes);
+		}
+	}
+
+	/**
+	 * Blocks until the receiver answered the offer of the transfer.
+	 *
+	 * @param timeout
+	 *            Maximum time to wait in milliseconds
+	 * @return false if there is no answer, e.g. from a peer which does not
+	 *         support resuming
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean waitForOfferAnswer(long timeout)
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		long waitTime = timeout;
+
+		while (!offerAnswered && !aborted && waitTime > 0) {
+			wait(waitTime);
+			waitTime = end - System.currentTimeMillis();
+		}
+
+		return offerAnswered;
+	}
+
+	public synchronized boolean isAcknowledged(int packageNo) {
+		return acknowledged[packageNo - 1];
+	}
+
+	/**
+	 * @return Number of sent but not acknowledged chunks, including dropped
+	 *         chunks waiting to be sent again
+	 */
+	public synchronized int getInFlightCount() {
+		return inFlight.size() + deferred.size();
+	}
+
+	/**
+	 * @return true if all packages are acknowledged
+	 */
+	public synchronized boolean isComplete() {
+		return acknowledgedCount == packageCount;
+	}
+
+	/**
+	 * Wakes up a sender waiting in {@link #waitForAcknowledgement(long)}, the
+	 * transfer is given up.
+	 */
+	public synchronized void abort() {
+		aborted = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isAborted() {
+		return aborted;
+	}
+
+	/**
+	 * Blocks until an acknowledgement arrives, the oldest chunk in flight runs
+	 * into its timeout or a dropped chunk is to be sent again.
+	 *
+	 * @param timeout
+	 *            Acknowledgement timeout in milliseconds
+	 * @throws InterruptedException
+	 */
+	public synchronized void waitForAcknowledgement(long timeout)
+			throws InterruptedException {
+		if (isComplete() || aborted
+				|| (inFlight.isEmpty() && deferred.isEmpty()))
+			return;
+
+		long wakeUp = Long.MAX_VALUE;
+		for (Long sentAt : inFlight.values())
+			wakeUp = Math.min(wakeUp, sentAt.longValue() + timeout);
+		for (Long resendAt : deferred.values())
+			wakeUp = Math.min(wakeUp, resendAt.longValue());
+
+		long waitTime = wakeUp - System.currentTimeMillis();
+		if (waitTime > 0)
+			wait(waitTime);
+	}
+
+	/**
+	 * Returns all chunks in flight which are not acknowledged within the given
+	 * timeout and counts a retransmission for each of them, and the dropped
+	 * chunks whose delay is over.
+	 *
+	 * @param timeout
+	 *            Acknowledgement timeout in milliseconds
+	 * @param maxRetransmissions
+	 *            Number of retransmissions allowed per chunk
+	 * @return First packages of the chunks to send again, null if one chunk
+	 *         exceeded the allowed retransmissions
+	 */
+	public synchronized List<Integer> getExpired(long timeout,
+			int maxRetransmissions) {
+		List<Integer> expired = new ArrayList<Integer>();
+		long now = System.currentTimeMillis();
+
+		Iterator<Map.Entry<Integer, Long>> it = deferred.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Long> entry = it.next();
+			if (now >= entry.getValue().longValue()) {
+				expired.add(entry.getKey());
+				it.remove();
+			}
+		}
+		int resent = expired.size();
+
+		it = inFlight.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Long> entry = it.next();
+			if (now - entry.getValue().longValue() >= timeout) {
+				int packageNo = entry.getKey().intValue();
+				if (++retransmissions[packageNo - 1] > maxRetransmissions)
+					return null;
+				expired.add(entry.getKey());
+			}
+		}
+
+		if (expired.size() > resent)
+			chunkSizeController.lost();
+
+		return expired;
+	}
+}
@@ -0,0 +1,17 @@
+package jxtaapp.service;
+
+/**
+ * Listener for discovered peers, see
+ * {@link Discovery#addPeerListener(PeerListener)}. Called on the discovery
+ * thread, an implementation must return quickly.
+ */
+public interface PeerListener {
+	/**
+	 * Called for a new peer and for a known one which reappeared, not for
+	 * every discovery response of a peer.
+	 * 
+	 * @param peer
+	 *            The discovered peer
+	 */
+	public void peerDiscovered(Peer peer);
+}
@@ -0,0 +1,357 @@
+package jxtaapp.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jxtaapp.ui.JxtaApp;
+import net.jxta.pipe.OutputPipe;
+import android.util.Log;
+
+/**
+ * Pool of the established output pipes to other peers, keyed by peer name
+ * (see {@link Jxta#getPipeToPeer(String)}). At most {@link #MAX_PIPES} pipes
+ * are held open; if the pool is full the least recently used pipe is closed,
+ * and pipes which are not used for {@link #IDLE_TIMEOUT} are closed by a
+ * timer.
+ * <p>
+ * A pipe which is used for a longer time, e.g. by a file transfer, is leased
+ * ({@link #lease(String)}) and released afterwards. A leased pipe is never
+ * closed for being idle, and if it is evicted it is only closed when its last
+ * lease is released.
+ */
+public class PipePool {
+	private final static int MAX_PIPES = 32;
+	private final static long IDLE_TIMEOUT = 5 * 60 * 1000;
+
+	/**
+	 * A pooled pipe.
+	 */
+	private static class Entry {
+		private OutputPipe pipe;
+		private long lastUsed = System.currentTimeMillis();
+		private int leases = 0;
+		private boolean evicted = false;
+
+		private Entry(OutputPipe pipe) {
+			this.pipe = pipe;
+		}
+	}
+
+	private LinkedHashMap<String, Entry> pipes;
+	private Map<OutputPipe, Entry> leasedPipes;
+	private Timer idleTimer;
+	private AtomicLong hits = new AtomicLong(0);
+	private AtomicLong misses = new AtomicLong(0);
+	private AtomicLong evictions = new AtomicLong(0);
+	private AtomicLong idleCloses = new AtomicLong(0);
+
+	/**
+	 * Starts the timer which closes idle pipes.
+	 */
+	PipePool() {
+		// access ordered, so the least recently used pipe comes first
+		this.pipes = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this.leasedPipes = new LinkedHashMap<OutputPipe, Entry>();
+
+		this.idleTimer = new Timer("Pipe Idle Timer", true);
+		this.idleTimer.schedule(new TimerTask() {
+			public void run() {
+				closeIdlePipes();
+			}
+		}, IDLE_TIMEOUT / 2, IDLE_TIMEOUT / 2);
+	}
+
+	/**
+	 * Returns the open pipe to a peer for a short use, e.g. one message.
+	 *
+	 * @param peername
+	 *            Name of the peer
+	 * @return The pipe or null if there is no open pipe to the peer
+	 */
+	public synchronized OutputPipe get(String peername) {
+		Entry entry = getEntry(peername);
+		return entry != null ? entry.pipe : null;
+	}
+
+	/**
+	 * Returns the open pipe to a peer and leases it, it must be given back
+	 * with {@link #release(String, OutputPipe)}.
+	 *
+	 * @param peername
+	 *            Name of the peer
+	 * @return The pipe or null if there is no open pipe to the peer
+	 */
+	public synchronized OutputPipe lease(String peername) {
+		Entry entry = getEntry(peername);
+		if (entry == null)
+			return null;
+
+		lease(entry);
+		return entry.pipe;
+	}
+
+	/**
+	 * Gives back a leased pipe, closes it if it was evicted meanwhile.
+	 *
+	 * @param peername
+	 *            Name of the peer
+	 * @param pipe
+	 *            The leased pipe
+	 */
+	public void release(String peername, OutputPipe pipe) {
+		synchronized (this) {
+			Entry entry = leasedPipes.get(pipe);
+			if (entry == null)
+				return;
+
+			entry.lastUsed = System.currentTimeMillis();
+			if (--entry.leases > 0)
+				return;
+
+			leasedPipes.remove(pipe);
+			if (!entry.evicted)
+				return;
+		}
+
+		Log.d(JxtaApp.TAG, "Close evicted pipe to peer " + peername);
+		pipe.close();
+	}
+
+	/**
+	 * Adds a new pipe to the pool. If meanwhile another pipe to the peer was
+	 * added, that one is kept and the new one closed.
+	 *
+	 * @param peername
+	 *            Name of the peer
+	 * @param pipe
+	 *            The new pipe
+	 * @param lease
+	 *            true to lease the pipe, see {@link #lease(String)}
+	 * @return The pooled pipe to use
+	 */
+	public OutputPipe put(String peername, OutputPipe pipe, boolean lease) {
+		List<OutputPipe> toClose = new ArrayList<OutputPipe>();
+		OutputPipe pooled;
+
+		synchronized (this) {
+			Entry entry = getOpenEntry(peername);
+			if (entry != null) {
+				toClose.add(pipe);
+			} else {
+				entry = new Entry(pipe);
+				pipes.put(peername, entry);
+				evict(toClose);
+			}
+
+			if (lease)
+				lease(entry);
+			pooled = entry.pipe;
+		}
+
+		for (OutputPipe closing : toClose)
+			closing.close();
+
+		return pooled;
+	}
+
+	/**
+	 * Removes the pipe to a peer from the pool and closes it as soon as it is
+	 * not leased any more.
+	 *
+	 * @param peername
+	 *            Name of the peer
+	 */
+	public void remove(String peername) {
+		OutputPipe toClose = null;
+
+		synchronized (this) {
+			Entry entry = pipes.remove(peername);
+			if (entry == null)
+				return;
+
+			entry.evicted = true;
+			if (entry.leases == 0)
+				toClose = entry.pipe;
+		}
+
+		if (toClose != null)
+			toClose.close();
+	}
+
+	/**
+	 * Stops the idle timer and closes all pipes, leased ones as well.
+	 */
+	public void close() {
+		List<OutputPipe> toClose = new ArrayList<OutputPipe>();
+
+		idleTimer.cancel();
+		synchronized (this) {
+			for (Entry entry : pipes.values())
+				toClose.add(entry.pipe);
+			for (Entry entry : leasedPipes.values()) {
+				if (!toClose.contains(entry.pipe))
+					toClose.add(entry.pipe);
+			}
+			pipes.clear();
+			leasedPipes.clear();
+		}
+
+		for (OutputPipe pipe : toClose) {
+			if (!pipe.isClosed())
+				pipe.close();
+		}
+	}
+
+	/**
+	 * @param peername
+	 *            Name of the peer
+	 * @return true if there is an open pipe to the peer, not counted as hit
+	 *         or miss
+	 */
+	public synchronized boolean contains(String peername) {
+		return getOpenEntry(peername) != null;
+	}
+
+	/**
+	 * Returns all open pipes, e.g. to probe them. Neither counted as hit or
+	 * miss nor as use of the pipes, so they still become idle.
+	 * 
+	 * @return Open pipes by peer name
+	 */
+	public synchronized Map<String, OutputPipe> getPipes() {
+		Map<String, OutputPipe> open = new LinkedHashMap<String, OutputPipe>();
+		for (Map.Entry<String, Entry> entry : pipes.entrySet()) {
+			if (!entry.getValue().pipe.isClosed())
+				open.put(entry.getKey(), entry.getValue().pipe);
+		}
+		return open;
+	}
+
+	/**
+	 * @return Number of pooled pipes
+	 */
+	public synchronized int size() {
+		return pipes.size();
+	}
+
+	/**
+	 * @return Number of requests answered with a pooled pipe
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return Number of requests without an open pooled pipe
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return Number of pipes evicted because the pool was full
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return Number of pipes closed because they were idle
+	 */
+	public long getIdleCloses() {
+		return idleCloses.get();
+	}
+
+	/**
+	 * @return The open entry of the peer, counted as hit or miss; a closed
+	 *         pipe is removed. The caller holds the lock.
+	 */
+	private Entry getEntry(String peername) {
+		Entry entry = getOpenEntry(peername);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		entry.lastUsed = System.currentTimeMillis();
+		return entry;
+	}
+
+	/**
+	 * @return The open entry of the peer or null, a closed pipe is removed.
+	 *         The caller holds the lock.
+	 */
+	private Entry getOpenEntry(String peername) {
+		Entry entry = pipes.get(peername);
+		if (entry != null && entry.pipe.isClosed()) {
+			pipes.remove(peername);
+			entry.evicted = true;
+			return null;
+		}
+		return entry;
+	}
+
+	private void lease(Entry entry) {
+		entry.leases++;
+		leasedPipes.put(entry.pipe, entry);
+	}
+
+	/**
+	 * Evicts the least recently used pipes while the pool is too big. The
+	 * caller holds the lock and closes the pipes afterwards.
+	 *
+	 * @param toClose
+	 *            Gets the pipes to close
+	 */
+	private void evict(List<OutputPipe> toClose) {
+		Iterator<Map.Entry<String, Entry>> it = pipes.entrySet().iterator();
+		while (pipes.size() > MAX_PIPES && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			it.remove();
+			evictions.incrementAndGet();
+
+			Entry entry = eldest.getValue();
+			entry.evicted = true;
+			if (entry.leases == 0)
+				toClose.add(entry.pipe);
+			Log.d(JxtaApp.TAG, "Pipe pool full, evict pipe to peer "
+					+ eldest.getKey());
+		}
+	}
+
+	/**
+	 * Closes the pipes which are not leased and not used for
+	 * {@link #IDLE_TIMEOUT}.
+	 */
+	private void closeIdlePipes() {
+		List<OutputPipe> toClose = new ArrayList<OutputPipe>();
+		long now = System.currentTimeMillis();
+
+		synchronized (this) {
+			Iterator<Map.Entry<String, Entry>> it = pipes.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Entry> entry = it.next();
+				if (entry.getValue().leases == 0
+						&& now - entry.getValue().lastUsed > IDLE_TIMEOUT) {
+					it.remove();
+					entry.getValue().evicted = true;
+					toClose.add(entry.getValue().pipe);
+					idleCloses.incrementAndGet();
+					Log.d(JxtaApp.TAG, "Close idle pipe to peer "
+							+ entry.getKey());
+				}
+			}
+		}
+
+		for (OutputPipe pipe : toClose)
+			pipe.close();
+	}
+}
@@ -0,0 +1,90 @@
+package jxtaapp.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets sent control and interactive messages go before bulk data (see
+ * {@link MessagePriority}). All messages share the same uplink, and a chat
+ * message sent while several transfers send their chunks would otherwise
+ * wait behind all of them. Every send is wrapped in
+ * {@link #enter(MessagePriority)} and {@link #exit(MessagePriority)}; a bulk
+ * send waits as long as a message of a higher class is being sent, but at
+ * most {@link #MAX_BULK_DELAY}, so a chat message waits for at most the chunk
+ * which is already on the way.
+ */
+public class PriorityGate {
+	private final static long MAX_BULK_DELAY = 500;
+
+	private int prioritySends = 0;
+	private AtomicLong delayedBulkSends = new AtomicLong(0);
+	private AtomicLong bulkDelay = new AtomicLong(0);
+
+	/**
+	 * Called before a message is sent, blocks a bulk send while messages of a
+	 * higher class are sent. An interrupted bulk send stops waiting, the
+	 * interrupt stays set.
+	 * 
+	 * @param priority
+	 *            Class of the message
+	 */
+	public void enter(MessagePriority priority) {
+		if (priority != MessagePriority.BULK) {
+			synchronized (this) {
+				prioritySends++;
+			}
+			return;
+		}
+
+		synchronized (this) {
+			if (prioritySends == 0)
+				return;
+
+			long start = System.currentTimeMillis();
+			long waitTime = MAX_BULK_DELAY;
+			while (prioritySends > 0 && waitTime > 0) {
+				try {
+					wait(waitTime);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				waitTime = start + MAX_BULK_DELAY - System.currentTimeMillis();
+			}
+
+			delayedBulkSends.incrementAndGet();
+			bulkDelay.addAndGet(System.currentTimeMillis() - start);
+		}
+	}
+
+	/**
+	 * Called after a message is sent, also if sending failed.
+	 * 
+	 * @param priority
+	 *            Class of the message
+	 */
+	public void exit(MessagePriority priority) {
+		if (priority == MessagePriority.BULK)
+			return;
+
+		synchronized (this) {
+			if (--prioritySends == 0)
+				notifyAll();
+		}
+	}
+
+	/**
+	 * @return Number of bulk sends which waited for a message of a higher
+	 *         class
+	 */
+	public long getDelayedBulkSends() {
+		return delayedBulkSends.get();
+	}
+
+	/**
+	 * @return Milliseconds all bulk sends waited for messages of a higher
+	 *         class
+	 */
+	public long getBulkDelay() {
+		return bulkDelay.get();
+	}
+}
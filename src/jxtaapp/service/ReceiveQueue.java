@@ -0,0 +1,226 @@
+package jxtaapp.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jxtaapp.ui.JxtaApp;
+import net.jxta.endpoint.Message;
+import android.util.Log;
+
+/**
+ * Write-behind queue for received chunks (see {@link FileTransfer}). The pipe
+ * listener thread only puts the chunk messages into a bounded queue, writer
+ * threads take them out in batches and let
+ * {@link FileTransfer#receiveFilePackages(Jxta, List)} write them, so disk
+ * I/O never blocks the delivery of other messages.
+ * <p>
+ * Every writer has its own queue and all chunks of a peer go to the same
+ * writer, so the chunks of a transfer stay in order and consecutive chunks of
+ * a batch can be merged into one write. What happens to a chunk if its queue
+ * is full is chosen by the caller ({@link MessageDispatcher.OverflowPolicy}):
+ * the pipe listener thread waits for space, or the oldest chunk or the new
+ * chunk is dropped. A dropped chunk is not acknowledged, so the sender sends
+ * it again.
+ */
+public class ReceiveQueue {
+	private final static int WRITER_THREADS = 2;
+	private final static int QUEUE_CAPACITY = 64;
+	private final static int MAX_BATCH_SIZE = 16;
+
+	private static class Entry {
+		private Jxta jxtaService;
+		private Message msg;
+
+		private Entry(Jxta jxtaService, Message msg) {
+			this.jxtaService = jxtaService;
+			this.msg = msg;
+		}
+	}
+
+	private FileTransfer fileTransferService;
+	private List<BlockingQueue<Entry>> queues;
+	private List<Thread> writers;
+	private AtomicInteger maxQueueDepth = new AtomicInteger(0);
+	private AtomicLong stallTime = new AtomicLong(0);
+	private AtomicLong droppedChunks = new AtomicLong(0);
+	private AtomicLong writtenChunks = new AtomicLong(0);
+	private AtomicLong writtenBatches = new AtomicLong(0);
+
+	/**
+	 * Starts the writer threads.
+	 * 
+	 * @param fileTransferService
+	 *            The file transfer service which writes the chunks
+	 */
+	public ReceiveQueue(FileTransfer fileTransferService) {
+		this.fileTransferService = fileTransferService;
+		this.queues = new ArrayList<BlockingQueue<Entry>>();
+		this.writers = new ArrayList<Thread>();
+
+		for (int i = 0; i < WRITER_THREADS; i++) {
+			final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(
+					QUEUE_CAPACITY);
+			Thread writer = new Thread(new Runnable() {
+				public void run() {
+					drain(queue);
+				}
+			}, "Receive Writer " + (i + 1));
+			writer.setDaemon(true);
+
+			queues.add(queue);
+			writers.add(writer);
+			writer.start();
+		}
+	}
+
+	/**
+	 * Stops the writer threads, queued chunks are dropped.
+	 */
+	public void stop() {
+		for (Thread writer : writers)
+			writer.interrupt();
+	}
+
+	/**
+	 * Queues a received chunk, called by the pipe listener thread.
+	 * 
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object
+	 * @param msg
+	 *            The received chunk message
+	 * @param peername
+	 *            Name of the sending peer
+	 * @param policy
+	 *            What to do if the queue is full,
+	 *            {@link MessageDispatcher.OverflowPolicy#SLOW_DOWN} drops the
+	 *            new chunk
+	 * @return false if the chunk was dropped
+	 */
+	public boolean enqueue(Jxta jxtaService, Message msg, String peername,
+			MessageDispatcher.OverflowPolicy policy) {
+		BlockingQueue<Entry> queue = queues.get((peername.hashCode() & 0x7fffffff)
+				% queues.size());
+		Entry entry = new Entry(jxtaService, msg);
+
+		if (!queue.offer(entry)) {
+			switch (policy) {
+			case BLOCK:
+				long start = System.currentTimeMillis();
+				try {
+					queue.put(entry);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					droppedChunks.incrementAndGet();
+					return false;
+				} finally {
+					stallTime.addAndGet(System.currentTimeMillis() - start);
+				}
+				break;
+			case DROP_OLDEST:
+				do {
+					if (queue.poll() != null)
+						droppedChunks.incrementAndGet();
+				} while (!queue.offer(entry));
+				break;
+			default:
+				droppedChunks.incrementAndGet();
+				Log.d(JxtaApp.TAG, "FILE: receive queue full, chunk from "
+						+ peername + " dropped");
+				return false;
+			}
+		}
+
+		int depth = queue.size();
+		for (;;) {
+			int max = maxQueueDepth.get();
+			if (depth <= max || maxQueueDepth.compareAndSet(max, depth))
+				break;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return Number of chunks waiting in all queues
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (BlockingQueue<Entry> queue : queues)
+			depth += queue.size();
+		return depth;
+	}
+
+	/**
+	 * @return Highest number of chunks seen in one queue
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	/**
+	 * @return Milliseconds the pipe listener thread waited for a full queue
+	 */
+	public long getStallTime() {
+		return stallTime.get();
+	}
+
+	/**
+	 * @return Number of chunks dropped because a queue stayed full
+	 */
+	public long getDroppedChunks() {
+		return droppedChunks.get();
+	}
+
+	/**
+	 * @return Number of chunks handed to the writers
+	 */
+	public long getWrittenChunks() {
+		return writtenChunks.get();
+	}
+
+	/**
+	 * @return Number of batches the chunks were written in
+	 */
+	public long getWrittenBatches() {
+		return writtenBatches.get();
+	}
+
+	/**
+	 * Writer loop: takes all queued chunks up to {@link #MAX_BATCH_SIZE} at
+	 * once and writes them.
+	 * 
+	 * @param queue
+	 *            The queue of the writer
+	 */
+	private void drain(BlockingQueue<Entry> queue) {
+		List<Entry> batch = new ArrayList<Entry>(MAX_BATCH_SIZE);
+		List<Message> messages = new ArrayList<Message>(MAX_BATCH_SIZE);
+
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+			for (Entry entry : batch)
+				messages.add(entry.msg);
+			try {
+				fileTransferService.receiveFilePackages(batch.get(0).jxtaService,
+						messages);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+
+			writtenChunks.addAndGet(batch.size());
+			writtenBatches.incrementAndGet();
+			batch.clear();
+			messages.clear();
+		}
+	}
+}
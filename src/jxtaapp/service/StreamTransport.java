@@ -0,0 +1,190 @@
+package jxtaapp.service;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import jxtaapp.ui.JxtaApp;
+import net.jxta.document.AdvertisementFactory;
+import net.jxta.id.IDFactory;
+import net.jxta.peergroup.PeerGroup;
+import net.jxta.peergroup.PeerGroupID;
+import net.jxta.pipe.PipeService;
+import net.jxta.protocol.PipeAdvertisement;
+import net.jxta.socket.JxtaServerSocket;
+import net.jxta.socket.JxtaSocket;
+import android.util.Log;
+
+/**
+ * Reliable byte streams between peers for large file transfers (see
+ * {@link FileTransfer}), based on {@link JxtaSocket}s. Every peer listens with
+ * a {@link JxtaServerSocket} on a unicast pipe whose ID is derived from its
+ * peer ID, so a sender which knows the peer ID of the receiver connects
+ * without a discovery. The socket does its own flow control and
+ * retransmission, so the file bytes are written without a message and an
+ * acknowledgement per chunk.
+ * <p>
+ * Accepted streams are handed to
+ * {@link FileTransfer#receiveStream(Jxta, Socket)} on a pool of at most
+ * {@link #MAX_STREAMS} threads; further connections wait in the backlog.
+ */
+class StreamTransport implements Runnable {
+	private final static int MAX_STREAMS = 4;
+	private final static int CONNECT_TIMEOUT = 30 * 1000;
+	private final static int ACCEPT_TIMEOUT = 60 * 1000;
+
+	private PeerGroup peerGroup;
+	private Jxta jxtaService;
+	private FileTransfer fileTransfer;
+	private JxtaServerSocket serverSocket;
+	private ExecutorService receivers;
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param peerGroup
+	 *            Group of the pipes
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object handed to the file
+	 *            transfer
+	 * @param fileTransfer
+	 *            Receives the accepted streams
+	 */
+	StreamTransport(PeerGroup peerGroup, Jxta jxtaService,
+			FileTransfer fileTransfer) {
+		this.peerGroup = peerGroup;
+		this.jxtaService = jxtaService;
+		this.fileTransfer = fileTransfer;
+	}
+
+	/**
+	 * Binds the server socket and starts the accept thread.
+	 *
+	 * @throws IOException
+	 *             If the server socket could not be bound
+	 */
+	void start() throws IOException {
+		serverSocket = new JxtaServerSocket(peerGroup, createAdvertisement(
+				peerGroup.getPeerID().toString()), MAX_STREAMS);
+		serverSocket.setSoTimeout(ACCEPT_TIMEOUT);
+
+		receivers = Executors.newFixedThreadPool(MAX_STREAMS,
+				new ThreadFactory() {
+					private int count = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Stream Receive Thread "
+								+ ++count);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		Thread acceptThread = new Thread(this, "Stream Accept Thread");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	/**
+	 * Closes the server socket, running streams are interrupted.
+	 */
+	void stop() {
+		stopped = true;
+		if (receivers != null)
+			receivers.shutdownNow();
+		try {
+			if (serverSocket != null)
+				serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Opens a stream to a peer.
+	 *
+	 * @param peerId
+	 *            Peer ID of the receiver in JXTAs format
+	 * @return The connected socket
+	 * @throws IOException
+	 *             If the peer does not answer
+	 */
+	Socket connect(String peerId) throws IOException {
+		return new JxtaSocket(peerGroup, createAdvertisement(peerId),
+				CONNECT_TIMEOUT);
+	}
+
+	/**
+	 * Accepts streams until stopped.
+	 */
+	public void run() {
+		while (!stopped) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (SocketTimeoutException e) {
+				continue;
+			} catch (IOException e) {
+				if (!stopped)
+					e.printStackTrace();
+				return;
+			}
+
+			try {
+				receivers.execute(new Runnable() {
+					public void run() {
+						fileTransfer.receiveStream(jxtaService, socket);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// stopped
+				close(socket);
+			}
+		}
+	}
+
+	/**
+	 * Closes a socket, errors are only logged.
+	 *
+	 * @param socket
+	 *            The socket or null
+	 */
+	static void close(Socket socket) {
+		if (socket == null)
+			return;
+
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Log.d(JxtaApp.TAG, "Closing stream failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param peerId
+	 *            Peer ID of the listening peer in JXTAs format
+	 * @return Advertisement of the unicast pipe the peer listens on for
+	 *         streams
+	 */
+	private static PipeAdvertisement createAdvertisement(String peerId) {
+		byte[] seed;
+		try {
+			seed = ("jxtaapp stream " + peerId).getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+
+		PipeAdvertisement adv = (PipeAdvertisement) AdvertisementFactory
+				.newAdvertisement(PipeAdvertisement.getAdvertisementType());
+		adv.setPipeID(IDFactory.newPipeID(PeerGroupID.defaultNetPeerGroupID,
+				seed));
+		adv.setType(PipeService.UnicastType);
+		adv.setName("Stream:" + peerId);
+
+		return adv;
+	}
+}
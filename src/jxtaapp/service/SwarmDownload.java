@@ -0,0 +1,308 @@
+package jxtaapp.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of one file download from several peers at once (see
+ * {@link FileTransfer#downloadFile(Jxta, String, List)}). Every peer which
+ * offered the same file (same package count and size) is a source. The
+ * missing packages are split into ranges of {@link #RANGE_PACKAGES} packages
+ * which are requested from the sources, with at most {@link #PIPELINE_DEPTH}
+ * open requests per source. A free request slot is always given to the
+ * source with the highest measured throughput, and faster sources free their
+ * slots sooner, so they get more of the work.
+ * <p>
+ * Requests without an answer within the timeout are put back for another
+ * source; a source which fails too often is dropped.
+ */
+class SwarmDownload {
+	private final static int RANGE_PACKAGES = 8;
+	private final static int PIPELINE_DEPTH = 4;
+
+	/**
+	 * A requested range of packages.
+	 */
+	static class Request {
+		String peername;
+		int packageNo;
+		int packages;
+		long requestedAt;
+
+		Request(String peername, int packageNo, int packages) {
+			this.peername = peername;
+			this.packageNo = packageNo;
+			this.packages = packages;
+			this.requestedAt = System.currentTimeMillis();
+		}
+	}
+
+	private String filename;
+	private int packageCount = 0;
+	private long fileSize = -1;
+	private byte[] packageHashes = null;
+	private byte[] merkleRoot = null;
+	private long startTime;
+	private List<String> sources;
+	private Map<String, Integer> openRequests;
+	private Map<String, Long> deliveredBytes;
+	private Map<String, Integer> failures;
+	private LinkedList<int[]> pendingRanges;
+	private Map<Integer, Request> requests;
+
+	/**
+	 * @param filename
+	 *            Name of the file to download
+	 */
+	public SwarmDownload(String filename) {
+		this.filename = filename;
+		this.startTime = System.currentTimeMillis();
+		this.sources = new ArrayList<String>();
+		this.openRequests = new HashMap<String, Integer>();
+		this.deliveredBytes = new HashMap<String, Long>();
+		this.failures = new HashMap<String, Integer>();
+		this.pendingRanges = new LinkedList<int[]>();
+		this.requests = new HashMap<Integer, Request>();
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public synchronized int getPackageCount() {
+		return packageCount;
+	}
+
+	public synchronized long getFileSize() {
+		return fileSize;
+	}
+
+	public synchronized byte[] getPackageHashes() {
+		return packageHashes;
+	}
+
+	public synchronized byte[] getMerkleRoot() {
+		return merkleRoot;
+	}
+
+	/**
+	 * @return Names of the peers which deliver the file
+	 */
+	public synchronized List<String> getSources() {
+		return new ArrayList<String>(sources);
+	}
+
+	/**
+	 * Called for the offer of a peer which has the file. The first offer
+	 * defines the file, later offers of a different file with the same name
+	 * are ignored.
+	 * 
+	 * @param peername
+	 *            Name of the offering peer
+	 * @param packageCount
+	 *            Number of packages including the end of file package
+	 * @param fileSize
+	 *            Size of the file
+	 * @param packageHashes
+	 *            Hashes of the packages or null
+	 * @param merkleRoot
+	 *            {@link MerkleTree} root of the file or null
+	 * @return true if the peer is a source now
+	 */
+	public synchronized boolean offered(String peername, int packageCount,
+			long fileSize, byte[] packageHashes, byte[] merkleRoot) {
+		if (this.packageCount == 0) {
+			this.packageCount = packageCount;
+			this.fileSize = fileSize;
+			this.packageHashes = packageHashes;
+			this.merkleRoot = merkleRoot;
+		} else if (this.packageCount != packageCount
+				|| this.fileSize != fileSize
+				|| (this.merkleRoot != null && merkleRoot != null && !Arrays
+						.equals(this.merkleRoot, merkleRoot))) {
+			return false;
+		}
+
+		if (!sources.contains(peername)) {
+			sources.add(peername);
+			openRequests.put(peername, 0);
+			deliveredBytes.put(peername, 0L);
+			failures.put(peername, 0);
+		}
+
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Blocks until the first peer offered the file.
+	 * 
+	 * @param timeout
+	 *            Maximum time to wait in milliseconds
+	 * @return false if no peer offered the file
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean waitForSources(long timeout)
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		long waitTime = timeout;
+
+		while (sources.isEmpty() && waitTime > 0) {
+			wait(waitTime);
+			waitTime = end - System.currentTimeMillis();
+		}
+
+		return !sources.isEmpty();
+	}
+
+	/**
+	 * Splits all missing data packages into ranges to request.
+	 * 
+	 * @param transfer
+	 *            The incoming transfer which already holds some packages
+	 */
+	public synchronized void planRanges(IncomingFileTransfer transfer) {
+		pendingRanges.clear();
+
+		int packageNo = 1;
+		while (packageNo < packageCount) {
+			if (transfer.isReceived(packageNo)) {
+				packageNo++;
+				continue;
+			}
+
+			int packages = 1;
+			while (packages < RANGE_PACKAGES
+					&& packageNo + packages < packageCount
+					&& !transfer.isReceived(packageNo + packages))
+				packages++;
+
+			pendingRanges.add(new int[] { packageNo, packages });
+			packageNo += packages;
+		}
+	}
+
+	/**
+	 * Assigns the next pending range to the fastest source with a free
+	 * request slot.
+	 * 
+	 * @return The request to send or null if there is no range or no free
+	 *         slot
+	 */
+	public synchronized Request nextRequest() {
+		if (pendingRanges.isEmpty())
+			return null;
+
+		String fastest = null;
+		double fastestRate = -1;
+		long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+
+		for (String peername : sources) {
+			if (openRequests.get(peername).intValue() >= PIPELINE_DEPTH)
+				continue;
+
+			double rate = deliveredBytes.get(peername).longValue()
+					/ (double) elapsed;
+			if (rate > fastestRate) {
+				fastest = peername;
+				fastestRate = rate;
+			}
+		}
+
+		if (fastest == null)
+			return null;
+
+		int[] range = pendingRanges.removeFirst();
+		Request request = new Request(fastest, range[0], range[1]);
+		requests.put(range[0], request);
+		openRequests.put(fastest, openRequests.get(fastest).intValue() + 1);
+		return request;
+	}
+
+	/**
+	 * Called for every arrived chunk, frees the request slot of the source.
+	 * 
+	 * @param peername
+	 *            Name of the delivering peer
+	 * @param packageNo
+	 *            First package of the chunk
+	 * @param bytes
+	 *            Size of the chunk
+	 */
+	public synchronized void delivered(String peername, int packageNo,
+			long bytes) {
+		if (deliveredBytes.containsKey(peername))
+			deliveredBytes.put(peername, deliveredBytes.get(peername)
+					.longValue()
+					+ bytes);
+
+		Request request = requests.remove(packageNo);
+		if (request != null && openRequests.containsKey(request.peername))
+			openRequests.put(request.peername, openRequests.get(
+					request.peername).intValue() - 1);
+
+		notifyAll();
+	}
+
+	/**
+	 * @return true if all ranges are delivered
+	 */
+	public synchronized boolean isDone() {
+		return pendingRanges.isEmpty() && requests.isEmpty();
+	}
+
+	/**
+	 * Blocks until a chunk arrives or the timeout passes.
+	 * 
+	 * @param timeout
+	 *            Maximum time to wait in milliseconds
+	 * @throws InterruptedException
+	 */
+	public synchronized void waitForProgress(long timeout)
+			throws InterruptedException {
+		if (!isDone())
+			wait(timeout);
+	}
+
+	/**
+	 * Puts all requests which are not answered within the timeout back to the
+	 * pending ranges and drops sources which failed too often.
+	 * 
+	 * @param timeout
+	 *            Request timeout in milliseconds
+	 * @param maxFailures
+	 *            Number of timed out requests allowed per source
+	 * @return false if no source is left
+	 */
+	public synchronized boolean expire(long timeout, int maxFailures) {
+		long now = System.currentTimeMillis();
+
+		Iterator<Request> it = requests.values().iterator();
+		while (it.hasNext()) {
+			Request request = it.next();
+			if (now - request.requestedAt < timeout)
+				continue;
+
+			it.remove();
+			pendingRanges.addFirst(new int[] { request.packageNo,
+					request.packages });
+
+			if (!sources.contains(request.peername))
+				continue;
+
+			openRequests.put(request.peername, openRequests.get(
+					request.peername).intValue() - 1);
+			int failed = failures.get(request.peername).intValue() + 1;
+			failures.put(request.peername, failed);
+			if (failed > maxFailures)
+				sources.remove(request.peername);
+		}
+
+		return !sources.isEmpty();
+	}
+}
@@ -2,9 +2,13 @@ package jxtaapp.service;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import jxtaapp.ui.JxtaApp;
 import net.jxta.endpoint.Message;
@@ -23,10 +27,88 @@ import android.util.Log;
  * <li>StringMessageElement: "FromName" as name, the name of the sender</li>
  * <li>StringMessageElement: "Content" as name, the text</li>
  * </ol>
+ * In batching mode ({@link #setBatching(boolean)}) the texts for a peer are
+ * gathered for a short window ({@link #setBatchWindow(long)}) or up to a size
+ * limit ({@link #setMaxBatchSize(int, int)}) and sent in one message:
+ * "Content" holds the first text, "Content1", "Content2" and so on the
+ * following ones and "Count" the number of texts. Peers without batching only
+ * show the first text of such a message. A batch is sent over the pooled pipe
+ * to the peer at the time of sending; if there is none or sending fails, its
+ * texts are queued in the {@link OutboundQueue} (see
+ * {@link Jxta#queueTexts(String, List)}).
  */
 public class TextTransfer {
 	private String peerId;
 	private String instanceName;
+	private volatile boolean batching = false;
+	private volatile long batchWindow = 50;
+	private volatile int maxBatchSize = 32;
+	private volatile int maxBatchBytes = 16 * 1024;
+	private Map<String, Batch> batches;
+	private Timer batchTimer;
+	private PriorityGate priorityGate = new PriorityGate();
+	private Jxta jxtaService;
+
+	/**
+	 * The texts waiting for one peer. Adding and sending hold the lock of the
+	 * batch, so the texts of a peer are sent in order.
+	 */
+	private class Batch {
+		private String peername;
+		private List<String> texts = new ArrayList<String>();
+		private int bytes = 0;
+		private boolean scheduled = false;
+
+		private Batch(String peername) {
+			this.peername = peername;
+		}
+
+		private synchronized void add(String text) {
+			texts.add(text);
+			bytes += text.length();
+
+			if (texts.size() >= maxBatchSize || bytes >= maxBatchBytes) {
+				flush();
+			} else if (!scheduled) {
+				scheduled = true;
+				batchTimer.schedule(new TimerTask() {
+					public void run() {
+						flush();
+					}
+				}, batchWindow);
+			}
+		}
+
+		private synchronized void flush() {
+			scheduled = false;
+			if (texts.isEmpty())
+				return;
+
+			List<String> sending = new ArrayList<String>(texts);
+			texts.clear();
+			bytes = 0;
+
+			// the pipe given to sendText may be evicted or closed meanwhile
+			PipePool pipePool = jxtaService.getPipePool();
+			OutputPipe pipe = pipePool.lease(peername);
+			if (pipe == null) {
+				Log.d(JxtaApp.TAG, "No pipe to " + peername
+						+ " for batched texts");
+				jxtaService.queueTexts(peername, sending);
+				return;
+			}
+
+			try {
+				send(pipe, sending);
+			} catch (IOException e) {
+				Log.d(JxtaApp.TAG, "Batched texts to " + peername
+						+ " failed: " + e.getMessage());
+				jxtaService.queueTexts(peername, sending);
+			} finally {
+				pipePool.release(peername, pipe);
+			}
+		}
+	}
 
 	/**
 	 * Constructor for file transfer manager
@@ -39,6 +121,81 @@ public class TextTransfer {
 	public TextTransfer(String peerId, String instanceName) {
 		this.peerId = peerId;
 		this.instanceName = instanceName;
+		this.batches = new HashMap<String, Batch>();
+		this.batchTimer = new Timer("Text Batch Timer", true);
+	}
+
+	/**
+	 * Registers the handler for {@link Jxta.MessageType#TEXT} messages. One
+	 * worker thread, so the texts are shown in the order they arrived.
+	 * 
+	 * @param dispatcher
+	 *            The dispatcher of the received messages
+	 */
+	public void registerHandlers(MessageDispatcher dispatcher) {
+		dispatcher.register(Jxta.MessageType.TEXT.toString(),
+				new MessageHandler() {
+					public void handleMessage(Jxta jxtaService, Message msg) {
+						receiveText(jxtaService, msg);
+					}
+				}, Jxta.MessageType.TEXT.getPriority(), 1, 64);
+	}
+
+	/**
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object for the pipes of the
+	 *            batches and for queueing their texts if sending fails
+	 */
+	void setJxtaService(Jxta jxtaService) {
+		this.jxtaService = jxtaService;
+	}
+
+	/**
+	 * @param priorityGate
+	 *            Gate shared with the other services, so texts are sent before
+	 *            file chunks
+	 */
+	void setPriorityGate(PriorityGate priorityGate) {
+		this.priorityGate = priorityGate;
+	}
+
+	/**
+	 * Sends all waiting texts and stops the batching timer.
+	 */
+	public void stop() {
+		flushAll();
+		batchTimer.cancel();
+	}
+
+	/**
+	 * @param batching
+	 *            true to gather texts for the same peer and send them in one
+	 *            message, false to send every text at once
+	 */
+	public void setBatching(boolean batching) {
+		this.batching = batching;
+		if (!batching)
+			flushAll();
+	}
+
+	/**
+	 * @param batchWindow
+	 *            Milliseconds to wait for more texts after the first text of
+	 *            a batch
+	 */
+	public void setBatchWindow(long batchWindow) {
+		this.batchWindow = batchWindow;
+	}
+
+	/**
+	 * @param maxBatchSize
+	 *            Number of texts after which a batch is sent at once
+	 * @param maxBatchBytes
+	 *            Number of characters after which a batch is sent at once
+	 */
+	public void setMaxBatchSize(int maxBatchSize, int maxBatchBytes) {
+		this.maxBatchSize = maxBatchSize;
+		this.maxBatchBytes = maxBatchBytes;
 	}
 
 	/**
@@ -49,27 +206,79 @@ public class TextTransfer {
 	 *            An output pipe for the message
 	 * @param data
 	 *            The message text
+	 * @throws IOException
+	 *             If the text could not be sent; in batching mode the text
+	 *             is queued instead if its batch cannot be sent
+	 */
+	public void sendText(OutputPipe pipe, String data) throws IOException {
+		if (batching) {
+			Batch batch;
+			synchronized (batches) {
+				batch = batches.get(pipe.getName());
+				if (batch == null) {
+					batch = new Batch(pipe.getName());
+					batches.put(pipe.getName(), batch);
+				}
+			}
+			batch.add(data);
+			return;
+		}
+
+		List<String> texts = new ArrayList<String>(1);
+		texts.add(data);
+		send(pipe, texts);
+	}
+
+	/**
+	 * Sends the texts of all batches.
+	 */
+	private void flushAll() {
+		List<Batch> waiting;
+		synchronized (batches) {
+			waiting = new ArrayList<Batch>(batches.values());
+		}
+
+		for (Batch batch : waiting)
+			batch.flush();
+	}
+
+	/**
+	 * Builds one JXTA message object for the texts and sends it.
+	 * 
+	 * @param pipe
+	 *            An output pipe for the message
+	 * @param texts
+	 *            The texts in the order they were written
+	 * @throws IOException
 	 */
-	public void sendText(OutputPipe pipe, String data) {
+	private void send(OutputPipe pipe, List<String> texts) throws IOException {
 		Log.d(JxtaApp.TAG, "Try to send message now...");
+		Message msg = new Message();
+		MessageElement typeElem = new StringMessageElement("Type",
+				Jxta.MessageType.TEXT.toString(), null);
+		MessageElement fromElem = new StringMessageElement("From", peerId,
+				null);
+		MessageElement fromNameElem = new StringMessageElement("FromName",
+				instanceName, null);
+		MessageElement contentElem = new StringMessageElement("Content",
+				texts.get(0), null);
+
+		msg.addMessageElement(typeElem);
+		msg.addMessageElement(fromElem);
+		msg.addMessageElement(fromNameElem);
+		msg.addMessageElement(contentElem);
+		if (texts.size() > 1) {
+			msg.addMessageElement(new StringMessageElement("Count", String
+					.valueOf(texts.size()), null));
+			for (int i = 1; i < texts.size(); i++)
+				msg.addMessageElement(new StringMessageElement("Content"
+						+ i, texts.get(i), null));
+		}
+		priorityGate.enter(MessagePriority.INTERACTIVE);
 		try {
-			Message msg = new Message();
-			MessageElement typeElem = new StringMessageElement("Type",
-					Jxta.MessageType.TEXT.toString(), null);
-			MessageElement fromElem = new StringMessageElement("From", peerId,
-					null);
-			MessageElement fromNameElem = new StringMessageElement("FromName",
-					instanceName, null);
-			MessageElement contentElem = new StringMessageElement("Content",
-					data, null);
-
-			msg.addMessageElement(typeElem);
-			msg.addMessageElement(fromElem);
-			msg.addMessageElement(fromNameElem);
-			msg.addMessageElement(contentElem);
 			pipe.send(msg);
-		} catch (IOException e1) {
-			e1.printStackTrace();
+		} finally {
+			priorityGate.exit(MessagePriority.INTERACTIVE);
 		}
 		Log.d(JxtaApp.TAG, "Message was send");
 	}
@@ -88,30 +297,48 @@ public class TextTransfer {
 	public void receiveText(final Jxta jxtaService, Message msg) {
 		final String from = msg.getMessageElement("From").toString();
 		final String fromName = msg.getMessageElement("FromName").toString();
-		final String content = msg.getMessageElement("Content").toString();
+		final List<String> contents = new ArrayList<String>();
 
-		Log.d(JxtaApp.TAG, "MESSAGE FROM " + new String(fromName) + " ("
-				+ new Date() + "): " + new String(content) + " (PeerID: "
-				+ new String(from) + ")");
+		contents.add(msg.getMessageElement("Content").toString());
+		if (msg.getMessageElement("Count") != null) {
+			int count = Integer.valueOf(
+					msg.getMessageElement("Count").toString()).intValue();
+			for (int i = 1; i < count; i++) {
+				MessageElement contentElem = msg.getMessageElement("Content"
+						+ i);
+				if (contentElem != null)
+					contents.add(contentElem.toString());
+			}
+		}
+
+		for (String content : contents)
+			Log.d(JxtaApp.TAG, "MESSAGE FROM " + new String(fromName) + " ("
+					+ new Date() + "): " + new String(content) + " (PeerID: "
+					+ new String(from) + ")");
 
 		JxtaApp.handler.post(new Runnable() {
 			public void run() {
 				Peer peer = jxtaService.getPeerByName(fromName);
 
-				peer.addHistory("> " + fromName, new SimpleDateFormat(
-						"dd.MM.yy HH:mm:ss").format(new Date()), content);
+				for (String content : contents) {
+					peer.addHistory("> " + fromName, new SimpleDateFormat(
+							"dd.MM.yy HH:mm:ss").format(new Date()), content);
+
+					// id view for this peer open display it
+					if (JxtaApp.lstChatHistoryElements != null
+							&& JxtaApp.lstChatHistoryAdapter != null) {
+						Map<String, String> map = new HashMap<String, String>();
+						map.put("name", "> " + peer.getName());
+						map.put("time", new SimpleDateFormat(
+								"dd.MM.yy HH:mm:ss").format(new Date()));
+						map.put("text", content);
+						JxtaApp.lstChatHistoryElements.add(map);
+					}
+				}
 
-				// id view for this peer open display it
 				if (JxtaApp.lstChatHistoryElements != null
-						&& JxtaApp.lstChatHistoryAdapter != null) {
-					Map<String, String> map = new HashMap<String, String>();
-					map.put("name", "> " + peer.getName());
-					map.put("time", new SimpleDateFormat("dd.MM.yy HH:mm:ss")
-							.format(new Date()));
-					map.put("text", content);
-					JxtaApp.lstChatHistoryElements.add(map);
+						&& JxtaApp.lstChatHistoryAdapter != null)
 					JxtaApp.lstChatHistoryAdapter.notifyDataSetChanged();
-				}
 			}
 		});
 	}
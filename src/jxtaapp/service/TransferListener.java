@@ -0,0 +1,22 @@
+package jxtaapp.service;
+
+/**
+ * Listener for the start and the end of file transfers, see
+ * {@link TransferMonitor}. The progress of a running transfer is polled from
+ * its {@link TransferStats}. Called on the transfer threads, an
+ * implementation must return quickly.
+ */
+public interface TransferListener {
+	/**
+	 * @param stats
+	 *            Statistics of the started transfer
+	 */
+	public void transferStarted(TransferStats stats);
+
+	/**
+	 * @param stats
+	 *            Statistics of the finished transfer, see
+	 *            {@link TransferStats#isSuccessful()}
+	 */
+	public void transferFinished(TransferStats stats);
+}
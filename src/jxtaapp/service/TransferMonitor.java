@@ -0,0 +1,86 @@
+package jxtaapp.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the {@link TransferStats} of all running and the recently finished
+ * file transfers (see {@link FileTransfer#getTransferMonitor()}) and informs
+ * {@link TransferListener}s about started and finished transfers.
+ */
+public class TransferMonitor {
+	private final static int MAX_FINISHED_TRANSFERS = 16;
+
+	private List<TransferStats> transfers;
+	private List<TransferListener> listeners;
+
+	public TransferMonitor() {
+		this.transfers = new ArrayList<TransferStats>();
+		this.listeners = new CopyOnWriteArrayList<TransferListener>();
+	}
+
+	public void addTransferListener(TransferListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeTransferListener(TransferListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return Statistics of the running and the recently finished transfers,
+	 *         oldest first
+	 */
+	public List<TransferStats> getTransfers() {
+		synchronized (transfers) {
+			return new ArrayList<TransferStats>(transfers);
+		}
+	}
+
+	/**
+	 * Registers a new transfer.
+	 * 
+	 * @param upload
+	 *            true for an upload, false for a download
+	 * @param peername
+	 *            Name of the other peer
+	 * @param filename
+	 *            Name of the file
+	 * @param totalBytes
+	 *            Size of the file, -1 if not known yet
+	 * @return The statistics to update
+	 */
+	TransferStats start(boolean upload, String peername, String filename,
+			long totalBytes) {
+		TransferStats stats = new TransferStats(this, upload, peername,
+				filename, totalBytes);
+
+		synchronized (transfers) {
+			transfers.add(stats);
+		}
+		for (TransferListener listener : listeners)
+			listener.transferStarted(stats);
+
+		return stats;
+	}
+
+	/**
+	 * Called by {@link TransferStats#finish(boolean)}.
+	 * 
+	 * @param stats
+	 *            The finished transfer
+	 */
+	void finished(TransferStats stats) {
+		synchronized (transfers) {
+			int finished = 0;
+			for (int i = transfers.size() - 1; i >= 0; i--) {
+				if (transfers.get(i).isFinished()
+						&& ++finished > MAX_FINISHED_TRANSFERS)
+					transfers.remove(i);
+			}
+		}
+		for (TransferListener listener : listeners)
+			listener.transferFinished(stats);
+	}
+}
@@ -0,0 +1,379 @@
+package jxtaapp.service;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jxtaapp.ui.JxtaApp;
+import net.jxta.pipe.OutputPipe;
+import android.util.Log;
+
+/**
+ * Runs file uploads and downloads concurrently on a bounded pool of worker
+ * threads, so a transfer to one peer does not wait for the transfers to other
+ * peers. Transfers beyond {@link #MAX_ACTIVE_TRANSFERS} are queued.
+ * <p>
+ * Files sent with {@link Jxta#sendMsgToPeer(String, String, Jxta.MessageType)}
+ * are uploaded here as well, the sending thread waits for the result
+ * ({@link Transfer#await()}).
+ * <p>
+ * {@link FileTransfer} asks the scheduler for permission before every chunk
+ * it sends (and every range it requests in a swarm download). The permission
+ * is delayed as long as a per-peer or the global byte rate cap would be
+ * exceeded; transfers waiting for the global cap get it in the order they
+ * asked for it.
+ */
+public class TransferScheduler {
+	private final static int MAX_ACTIVE_TRANSFERS = 3;
+	private final static int MAX_FINISHED_TRANSFERS = 32;
+
+	public enum State {
+		QUEUED, ACTIVE, DONE, FAILED;
+	}
+
+	/**
+	 * A scheduled upload or download.
+	 */
+	public static class Transfer {
+		private boolean upload;
+		private String peername;
+		private String filename;
+		private volatile State state = State.QUEUED;
+		private volatile long bytes = 0;
+		private volatile IOException failure = null;
+		private CountDownLatch finished = new CountDownLatch(1);
+
+		private Transfer(boolean upload, String peername, String filename) {
+			this.upload = upload;
+			this.peername = peername;
+			this.filename = filename;
+		}
+
+		public boolean isUpload() {
+			return upload;
+		}
+
+		/**
+		 * @return Name of the receiving peer or null for a download
+		 */
+		public String getPeername() {
+			return peername;
+		}
+
+		public String getFilename() {
+			return filename;
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		/**
+		 * @return Bytes sent or requested so far
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Blocks until the transfer is done or failed.
+		 * 
+		 * @throws IOException
+		 *             The reason if the transfer failed, a
+		 *             {@link FileNotFoundException} if the file does not
+		 *             exist
+		 */
+		public void await() throws IOException {
+			try {
+				finished.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted while waiting for " + filename);
+			}
+
+			if (failure != null)
+				throw failure;
+		}
+	}
+
+	/**
+	 * Byte rate cap, a token bucket which may go into debt: a chunk is always
+	 * taken, and the sender waits until the debt is paid off.
+	 */
+	private static class TokenBucket {
+		private long byteRate = 0;
+		private double tokens = 0;
+		private long lastRefill = System.currentTimeMillis();
+
+		public synchronized void setByteRate(long byteRate) {
+			this.byteRate = byteRate;
+			this.tokens = 0;
+		}
+
+		/**
+		 * @param bytes
+		 *            Size of the chunk to send
+		 * @return Milliseconds to wait before sending
+		 */
+		public synchronized long reserve(long bytes) {
+			if (byteRate <= 0)
+				return 0;
+
+			long now = System.currentTimeMillis();
+			// at most one second of unused rate is saved up
+			tokens = Math.min(byteRate, tokens + (now - lastRefill) * byteRate
+					/ 1000.0);
+			lastRefill = now;
+			tokens -= bytes;
+
+			return tokens >= 0 ? 0 : (long) (-tokens * 1000 / byteRate);
+		}
+	}
+
+	private Jxta jxtaService;
+	private FileTransfer fileTransferService;
+	private ExecutorService workers;
+	private ReentrantLock turn;
+	private TokenBucket globalRate;
+	private Map<String, TokenBucket> peerRates;
+	private List<Transfer> transfers;
+	private ThreadLocal<Transfer> currentTransfer;
+
+	/**
+	 * @param jxtaService
+	 *            {@link jxtaapp.service.Jxta} object for the pipes to the
+	 *            peers
+	 * @param fileTransferService
+	 *            The file transfer service which runs the transfers
+	 */
+	public TransferScheduler(Jxta jxtaService, FileTransfer fileTransferService) {
+		this.jxtaService = jxtaService;
+		this.fileTransferService = fileTransferService;
+		this.workers = Executors.newFixedThreadPool(MAX_ACTIVE_TRANSFERS,
+				new ThreadFactory() {
+					private int count = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Transfer Thread "
+								+ ++count);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		// a fair lock grants the global cap in the order it was asked for
+		this.turn = new ReentrantLock(true);
+		this.globalRate = new TokenBucket();
+		this.peerRates = new HashMap<String, TokenBucket>();
+		this.transfers = new ArrayList<Transfer>();
+		this.currentTransfer = new ThreadLocal<Transfer>();
+
+		fileTransferService.setTransferScheduler(this);
+	}
+
+	/**
+	 * Stops all queued transfers, running ones are interrupted.
+	 */
+	public void stop() {
+		fileTransferService.setTransferScheduler(null);
+		workers.shutdownNow();
+
+		// queued transfers never run, wake up their waiting senders
+		for (Transfer transfer : getTransfers()) {
+			if (transfer.state == State.QUEUED)
+				finish(transfer, new IOException("Transfer of "
+						+ transfer.filename + " stopped"));
+		}
+	}
+
+	/**
+	 * Queues the upload of a file to a peer.
+	 * 
+	 * @param peername
+	 *            Name of the receiving peer
+	 * @param filepath
+	 *            Path of the file to send
+	 * @return The scheduled transfer
+	 */
+	public Transfer upload(final String peername, final String filepath) {
+		final Transfer transfer = new Transfer(true, peername, filepath);
+
+		schedule(transfer, new Runnable() {
+			public void run() {
+				if (!new File(filepath).exists()) {
+					finish(transfer, new FileNotFoundException(filepath));
+					return;
+				}
+
+				OutputPipe pipe = jxtaService.leasePipeToPeer(peername);
+				if (pipe == null) {
+					finish(transfer, new Jxta.PeerUnreachableException(
+							"Cannot setup pipe to peer " + peername));
+					return;
+				}
+
+				boolean success = false;
+				try {
+					success = fileTransferService.sendFile(pipe, filepath);
+				} finally {
+					jxtaService.releasePipe(peername, pipe);
+				}
+				finish(transfer, success ? null : new IOException(
+						"File transfer of " + filepath + " failed"));
+			}
+		});
+
+		return transfer;
+	}
+
+	/**
+	 * Queues the download of a file from all discovered peers which share it.
+	 * 
+	 * @param filename
+	 *            Name of the file
+	 * @return The scheduled transfer
+	 */
+	public Transfer download(final String filename) {
+		final Transfer transfer = new Transfer(false, null, filename);
+
+		schedule(transfer, new Runnable() {
+			public void run() {
+				finish(transfer, jxtaService.downloadFile(filename) ? null
+						: new IOException("Download of " + filename
+								+ " failed"));
+			}
+		});
+
+		return transfer;
+	}
+
+	/**
+	 * @return All queued, active and recently finished transfers
+	 */
+	public List<Transfer> getTransfers() {
+		synchronized (transfers) {
+			return new ArrayList<Transfer>(transfers);
+		}
+	}
+
+	/**
+	 * @param byteRate
+	 *            Maximum bytes per second of all transfers, 0 for no limit
+	 */
+	public void setGlobalByteRate(long byteRate) {
+		globalRate.setByteRate(byteRate);
+	}
+
+	/**
+	 * @param peername
+	 *            Name of the peer
+	 * @param byteRate
+	 *            Maximum bytes per second of all transfers to the peer, 0 for
+	 *            no limit
+	 */
+	public void setPeerByteRate(String peername, long byteRate) {
+		getPeerRate(peername).setByteRate(byteRate);
+	}
+
+	/**
+	 * Blocks until the calling transfer may send the next chunk: waits for its
+	 * turn and for the byte rate caps.
+	 * 
+	 * @param peername
+	 *            Name of the peer the chunk is sent to
+	 * @param bytes
+	 *            Size of the chunk
+	 * @throws InterruptedException
+	 */
+	void acquire(String peername, long bytes) throws InterruptedException {
+		// wait for the peer cap first, a slow peer must not hold the turn
+		long delay = getPeerRate(peername).reserve(bytes);
+		if (delay > 0)
+			Thread.sleep(delay);
+
+		turn.lockInterruptibly();
+		try {
+			delay = globalRate.reserve(bytes);
+			if (delay > 0)
+				Thread.sleep(delay);
+		} finally {
+			turn.unlock();
+		}
+
+		Transfer transfer = currentTransfer.get();
+		if (transfer != null)
+			transfer.bytes += bytes;
+	}
+
+	private TokenBucket getPeerRate(String peername) {
+		synchronized (peerRates) {
+			TokenBucket rate = peerRates.get(peername);
+			if (rate == null) {
+				rate = new TokenBucket();
+				peerRates.put(peername, rate);
+			}
+			return rate;
+		}
+	}
+
+	private void schedule(final Transfer transfer, final Runnable job) {
+		synchronized (transfers) {
+			transfers.add(transfer);
+		}
+
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					transfer.state = State.ACTIVE;
+					currentTransfer.set(transfer);
+					try {
+						job.run();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+						finish(transfer, new IOException(e.toString()));
+					} finally {
+						currentTransfer.set(null);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			finish(transfer, new IOException("Transfer of "
+					+ transfer.filename + " stopped"));
+		}
+	}
+
+	/**
+	 * @param transfer
+	 *            The finished transfer
+	 * @param failure
+	 *            The reason if it failed, null if it is done
+	 */
+	private void finish(Transfer transfer, IOException failure) {
+		transfer.failure = failure;
+		transfer.state = failure == null ? State.DONE : State.FAILED;
+		transfer.finished.countDown();
+		Log.d(JxtaApp.TAG, "TRANSFER: " + transfer.getFilename() + " "
+				+ transfer.state);
+
+		synchronized (transfers) {
+			int finished = 0;
+			for (int i = transfers.size() - 1; i >= 0; i--) {
+				State state = transfers.get(i).state;
+				if ((state == State.DONE || state == State.FAILED)
+						&& ++finished > MAX_FINISHED_TRANSFERS)
+					transfers.remove(i);
+			}
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package jxtaapp.service;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live statistics of one upload or download (see {@link TransferMonitor}).
+ * The transfer threads only increment atomic counters; throughput and ETA are
+ * computed by the reader when it polls them, so polling never blocks a
+ * transfer.
+ */
+public class TransferStats {
+	private final static long SAMPLE_INTERVAL = 1000;
+
+	private TransferMonitor monitor;
+	private boolean upload;
+	private String peername;
+	private String filename;
+	private long totalBytes;
+	private long startTime;
+	private AtomicLong bytesDone = new AtomicLong(0);
+	private AtomicInteger chunks = new AtomicInteger(0);
+	private AtomicInteger retransmissions = new AtomicInteger(0);
+	private volatile int chunkSize = 0;
+	private AtomicBoolean finished = new AtomicBoolean(false);
+	private volatile boolean successful = false;
+	private volatile long endTime = 0;
+	private long sampleTime;
+	private long sampleBytes = 0;
+	private long throughput = 0;
+
+	TransferStats(TransferMonitor monitor, boolean upload, String peername,
+			String filename, long totalBytes) {
+		this.monitor = monitor;
+		this.upload = upload;
+		this.peername = peername;
+		this.filename = filename;
+		this.totalBytes = totalBytes;
+		this.startTime = System.currentTimeMillis();
+		this.sampleTime = startTime;
+	}
+
+	public boolean isUpload() {
+		return upload;
+	}
+
+	/**
+	 * @return Name of the other peer, "Swarm" for a download from several
+	 *         peers
+	 */
+	public String getPeername() {
+		return peername;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * @return Size of the file in bytes, -1 if not known yet
+	 */
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * @return Bytes acknowledged by the receiver (upload) or written
+	 *         (download), including bytes of an earlier attempt
+	 */
+	public long getBytesDone() {
+		return bytesDone.get();
+	}
+
+	/**
+	 * @return Number of chunks sent (upload) or written (download)
+	 */
+	public int getChunks() {
+		return chunks.get();
+	}
+
+	/**
+	 * @return Number of chunks sent again (upload) or received twice
+	 *         (download)
+	 */
+	public int getRetransmissions() {
+		return retransmissions.get();
+	}
+
+	/**
+	 * @return Current chunk size in bytes of an upload, 0 for a download
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return Average bytes per second since the start
+	 */
+	public long getAverageThroughput() {
+		long end = finished.get() ? endTime : System.currentTimeMillis();
+		return bytesDone.get() * 1000 / Math.max(1, end - startTime);
+	}
+
+	/**
+	 * @return Bytes per second over the last second (at least), 0 after the
+	 *         end of the transfer
+	 */
+	public synchronized long getThroughput() {
+		if (finished.get())
+			return 0;
+
+		long now = System.currentTimeMillis();
+		if (now - sampleTime >= SAMPLE_INTERVAL) {
+			long bytes = bytesDone.get();
+			// bytes taken back after a broken stream make no negative rate
+			throughput = Math.max(0, bytes - sampleBytes) * 1000
+					/ (now - sampleTime);
+			sampleBytes = bytes;
+			sampleTime = now;
+		}
+
+		return throughput;
+	}
+
+	/**
+	 * @return Estimated milliseconds until the transfer is done, -1 if
+	 *         unknown
+	 */
+	public long getEta() {
+		if (finished.get())
+			return 0;
+
+		long rate = getThroughput();
+		if (rate == 0)
+			rate = getAverageThroughput();
+		if (totalBytes < 0 || rate == 0)
+			return -1;
+
+		return Math.max(0, totalBytes - bytesDone.get()) * 1000 / rate;
+	}
+
+	public boolean isFinished() {
+		return finished.get();
+	}
+
+	/**
+	 * @return true if the transfer finished with the complete file
+	 */
+	public boolean isSuccessful() {
+		return successful;
+	}
+
+	void setTotalBytes(long totalBytes) {
+		this.totalBytes = totalBytes;
+	}
+
+	void addBytes(long bytes) {
+		bytesDone.addAndGet(bytes);
+	}
+
+	void addChunk() {
+		chunks.incrementAndGet();
+	}
+
+	void addRetransmission() {
+		retransmissions.incrementAndGet();
+	}
+
+	void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Ends the transfer, only the first call counts.
+	 * 
+	 * @param successful
+	 *            true if the complete file was transferred
+	 */
+	void finish(boolean successful) {
+		if (!finished.compareAndSet(false, true))
+			return;
+
+		this.successful = successful;
+		this.endTime = System.currentTimeMillis();
+		monitor.finished(this);
+	}
+}
@@ -86,20 +86,30 @@ public class JxtaApp extends Activity {
 						getFileStreamPath("jxta"), txtInstanceName.getText()
 								.toString(), "", txtSeedingServer.getText()
 								.toString());
-				jxtaService.configureJXTA();
-				try {
-					jxtaService.startJXTA();
-				} catch (Throwable e) {
-					e.printStackTrace();
-				}
-				jxtaService.startDiscovery();
-
-				setContentView(R.layout.peer_list);
-				currentLayoutId = R.layout.peer_list;
-
-				dialog.dismiss();
-
-				createPeerListLayout();
+				// the network starts in the background, the UI thread must
+				// not block
+				new Thread(new Runnable() {
+					public void run() {
+						jxtaService.configureJXTA();
+						try {
+							jxtaService.startJXTA();
+						} catch (Throwable e) {
+							e.printStackTrace();
+						}
+						jxtaService.startDiscovery();
+
+						handler.post(new Runnable() {
+							public void run() {
+								setContentView(R.layout.peer_list);
+								currentLayoutId = R.layout.peer_list;
+
+								dialog.dismiss();
+
+								createPeerListLayout();
+							}
+						});
+					}
+				}, "Start Thread").start();
 			}
 		};
 		btnStart.setOnClickListener(btnStart_OnClickListener);
@@ -223,27 +233,59 @@ public class JxtaApp extends Activity {
 		lstChatHistory.setOnCreateContextMenuListener(this);
 
 		View.OnClickListener btnSend_OnClickListener = new View.OnClickListener() {
-			public void onClick(View view) {
-				if (jxtaService.sendMsgToPeer(peer.getName(), txtMessage
-						.getText().toString(), Jxta.MessageType.TEXT)) {
-					peer.addHistory("< " + peer.getName(),
-							new SimpleDateFormat("dd.MM.yy HH:mm:ss")
-									.format(new Date()), txtMessage.getText()
-									.toString());
-
-					Map<String, String> map = new HashMap<String, String>();
-					map.put("name", "< " + peer.getName());
-					map.put("time", new SimpleDateFormat("dd.MM.yy HH:mm:ss")
-							.format(new Date()));
-					map.put("text", txtMessage.getText().toString());
-					JxtaApp.lstChatHistoryElements.add(map);
-					JxtaApp.lstChatHistoryAdapter.notifyDataSetChanged();
-
-					// txtMessage.setText("");
-				} else {
-
-				}
-
+			public void onClick(final View view) {
+				// sent in the background, the UI thread must not block
+				jxtaService.sendMsgToPeerAsync(peer.getName(), txtMessage
+						.getText().toString(), Jxta.MessageType.TEXT,
+						new Jxta.SendCallback() {
+							public void onSuccess(String peername,
+									String message) {
+								addHistory("< " + peer.getName(), message);
+
+								// txtMessage.setText("");
+							}
+
+							public void onQueued(String peername,
+									String message) {
+								// not delivered yet, so marked in the history
+								addHistory("< " + peer.getName()
+										+ " (queued)", message);
+								Toast.makeText(
+										view.getRootView().getContext(),
+										"Message queued, " + peername
+												+ " is not reachable",
+										Toast.LENGTH_LONG).show();
+							}
+
+							private void addHistory(String name,
+									String message) {
+								peer.addHistory(name, new SimpleDateFormat(
+										"dd.MM.yy HH:mm:ss")
+										.format(new Date()), message);
+
+								if (JxtaApp.lstChatHistoryElements == null
+										|| JxtaApp.lstChatHistoryAdapter == null)
+									return;
+
+								Map<String, String> map = new HashMap<String, String>();
+								map.put("name", name);
+								map.put("time", new SimpleDateFormat(
+										"dd.MM.yy HH:mm:ss").format(new Date()));
+								map.put("text", message);
+								JxtaApp.lstChatHistoryElements.add(map);
+								JxtaApp.lstChatHistoryAdapter
+										.notifyDataSetChanged();
+							}
+
+							public void onFailure(String peername,
+									String message, Exception e) {
+								Toast.makeText(
+										view.getRootView().getContext(),
+										"ERROR while sending message: "
+												+ e.getMessage(),
+										Toast.LENGTH_LONG).show();
+							}
+						});
 			}
 		};
 		btnSend.setOnClickListener(btnSend_OnClickListener);
@@ -303,19 +345,42 @@ public class JxtaApp extends Activity {
 					return;
 				}
 
-				if (jxtaService.sendMsgToPeer(peer.getName(), txtFilename
-						.getText().toString(), Jxta.MessageType.FILE)) {
-					Toast.makeText(view.getRootView().getContext(),
-							"File transfer was successful", Toast.LENGTH_LONG)
-							.show();
-					setContentView(R.layout.peer_list);
-					currentLayoutId = R.layout.peer_list;
+				// sent in the background, the UI thread must not block
+				jxtaService.sendMsgToPeerAsync(peer.getName(), txtFilename
+						.getText().toString(), Jxta.MessageType.FILE,
+						new Jxta.SendCallback() {
+							public void onSuccess(String peername,
+									String message) {
+								Toast.makeText(getApplicationContext(),
+										"File transfer was successful",
+										Toast.LENGTH_LONG).show();
+							}
+
+							public void onQueued(String peername,
+									String message) {
+								Toast.makeText(getApplicationContext(),
+										"File transfer queued, " + peername
+												+ " is not reachable",
+										Toast.LENGTH_LONG).show();
+							}
+
+							public void onFailure(String peername,
+									String message, Exception e) {
+								Toast.makeText(
+										getApplicationContext(),
+										"ERROR while file transfer: "
+												+ e.getMessage(),
+										Toast.LENGTH_LONG).show();
+							}
+						});
+
+				Toast.makeText(view.getRootView().getContext(),
+						"Sending file in the background", Toast.LENGTH_SHORT)
+						.show();
+				setContentView(R.layout.peer_list);
+				currentLayoutId = R.layout.peer_list;
 
-					createPeerListLayout();
-				} else
-					Toast.makeText(view.getRootView().getContext(),
-							"ERROR while file transfer", Toast.LENGTH_LONG)
-							.show();
+				createPeerListLayout();
 			}
 		};
 		btnSendFile.setOnClickListener(btnSendFile_OnClickListener);